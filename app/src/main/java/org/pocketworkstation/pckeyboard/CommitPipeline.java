@@ -0,0 +1,718 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.Spanned;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.KeyEvent;
+import android.view.inputmethod.CompletionInfo;
+import android.view.inputmethod.CorrectionInfo;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.ExtractedText;
+import android.view.inputmethod.ExtractedTextRequest;
+import android.view.inputmethod.InputConnection;
+import android.view.inputmethod.InputConnectionWrapper;
+import android.view.inputmethod.InputContentInfo;
+import android.view.inputmethod.SurroundingText;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Output stage between the IME and the editor's InputConnection. Committed text, key
+ * events, deletions and meta state changes are queued and sent once per frame inside a
+ * single batch edit, adjacent text commits are merged into one. Other edits are queued
+ * behind them, so the editor sees exactly the same sequence of edits as without the
+ * pipeline.
+ *
+ * <p>The queued edits are carried out on a dedicated thread, which owns the connection for
+ * writes and for reloading the {@link EditorTextMirror}. A slow editor then doesn't hold up
+ * drawing and touch handling. Reads that can be answered from the mirror don't reach the
+ * editor at all. Other reads wait for the thread to catch up and are made on the calling
+ * thread.
+ *
+ * <p>Coalescing is disabled for password fields, and for editors whose cursor doesn't
+ * end up where merged commits should have put it. Must be used on the UI thread.
+ */
+class CommitPipeline extends InputConnectionWrapper {
+    private static final String TAG = "PCKeyboardCommit";
+
+    // Cursor mismatches after merged commits before an editor package is left alone.
+    private static final int MAX_STRIKES = 3;
+    // Longest wait for the connection thread before a read goes ahead anyway.
+    private static final long SYNC_TIMEOUT_MS = 2000;
+
+    private static final int OP_TEXT = 0;
+    private static final int OP_KEY = 1;
+    private static final int OP_DELETE = 2;
+    private static final int OP_CLEAR_META = 3;
+    private static final int OP_BEGIN_BATCH = 4;
+    private static final int OP_END_BATCH = 5;
+    private static final int OP_CALL = 6;
+
+    private static final class Op {
+        int type;
+        CharSequence text;
+        KeyEvent event;
+        Runnable call;
+        int arg1;
+        int arg2;
+    }
+
+    /**
+     * Single consumer thread for connection calls. Posting only appends to a lock-free
+     * queue and unparks the thread.
+     */
+    private static final class ConnectionThread extends Thread {
+        private final ConcurrentLinkedQueue<Runnable> mQueue =
+                new ConcurrentLinkedQueue<Runnable>();
+
+        ConnectionThread() {
+            super("InputConnection");
+            setDaemon(true);
+        }
+
+        void post(Runnable r) {
+            mQueue.offer(r);
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Waits until everything posted so far has been carried out.
+         * @return false on timeout
+         */
+        boolean waitForIdle(long timeoutMs) {
+            if (Thread.currentThread() == this) return true;
+            final CountDownLatch latch = new CountDownLatch(1);
+            post(new Runnable() {
+                public void run() {
+                    latch.countDown();
+                }
+            });
+            try {
+                return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+            for (;;) {
+                final Runnable r = mQueue.poll();
+                if (r == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                try {
+                    r.run();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "InputConnection call failed", e);
+                }
+            }
+        }
+    }
+
+    private static ConnectionThread sThread;
+
+    // Packages that didn't handle merged commits as expected, for the process lifetime.
+    private static final HashSet<String> sUncoalescedPackages = new HashSet<String>();
+    private static final HashMap<String, Integer> sStrikes = new HashMap<String, Integer>();
+
+    private ArrayList<Op> mOps = new ArrayList<Op>();
+    private final EditorTextMirror mMirror = new EditorTextMirror();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private InputConnection mTarget;
+    private String mPackageName;
+    private boolean mEnabled;
+    private boolean mFrameScheduled;
+
+    // Cursor tracking for detecting editors that rewrite merged commits. The expected
+    // position comes from the mirror, which follows batches the editor hasn't reported yet.
+    private int mSelStart = -1;
+    private int mSelEnd = -1;
+    private int mExpectedSelStart = -1;
+
+    // Bumped on every local edit and selection update, a background mirror reload is
+    // only used if nothing happened in between.
+    private int mGeneration;
+    private boolean mReloadPending;
+    // Batches handed to the connection thread that it hasn't finished sending.
+    private int mBatchesInFlight;
+    // Set when the mirror was read from the editor without knowing the selection. Selection
+    // updates queued by then acknowledge batches sent before the read, they must not
+    // position the mirror. Cleared once the UI thread has caught up with them.
+    private boolean mSkipStaleSelections;
+
+    private int mFlushes;
+    private int mFlushedOps;
+    private int mMergedCommits;
+    private int mSyncs;
+
+    private final Runnable mStaleSelectionsDone = new Runnable() {
+        public void run() {
+            mSkipStaleSelections = false;
+        }
+    };
+
+    private final Runnable mBatchSent = new Runnable() {
+        public void run() {
+            --mBatchesInFlight;
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            flush();
+        }
+    };
+
+    public CommitPipeline() {
+        super(null, true);
+    }
+
+    private static synchronized ConnectionThread getThread() {
+        if (sThread == null) {
+            sThread = new ConnectionThread();
+            sThread.start();
+        }
+        return sThread;
+    }
+
+    /**
+     * Configures coalescing for a new editor. Anything still queued for the previous
+     * editor is sent first, and waited for.
+     */
+    public void startInput(EditorInfo attribute) {
+        sync();
+        ++mGeneration;
+        mSelStart = -1;
+        mSelEnd = -1;
+        mExpectedSelStart = -1;
+        mPackageName = attribute == null ? null : attribute.packageName;
+        mEnabled = attribute != null
+                && !isPasswordInputType(attribute.inputType)
+                && !sUncoalescedPackages.contains(mPackageName);
+        mMirror.invalidate();
+        if (mEnabled && attribute.initialSelStart >= 0
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // Editors may pass the text around the cursor along, which saves the first read.
+            mMirror.reload(
+                    attribute.getInitialTextBeforeCursor(EditorTextMirror.MIRROR_CHARS, 0),
+                    attribute.getInitialTextAfterCursor(EditorTextMirror.MIRROR_CHARS, 0),
+                    attribute.initialSelStart, attribute.initialSelEnd);
+        }
+    }
+
+    /**
+     * Returns the connection the IME should use in place of the given one.
+     */
+    public InputConnection wrap(InputConnection ic) {
+        if (ic != mTarget) {
+            flush();
+            mTarget = ic;
+            setTarget(ic);
+            if (ic != null && mEnabled && !mMirror.isValid()) scheduleMirrorReload();
+        }
+        if (ic == null || !mEnabled) return ic;
+        return this;
+    }
+
+    public void onUpdateSelection(int newSelStart, int newSelEnd) {
+        if (mSkipStaleSelections && mMirror.isValid() && mMirror.getSelectionStart() < 0) {
+            ++mGeneration;
+            mSelStart = Math.min(newSelStart, newSelEnd);
+            mSelEnd = Math.max(newSelStart, newSelEnd);
+            return;
+        }
+        if (!mMirror.isValid()) {
+            // Later edits the mirror couldn't follow, the merged commit can't be checked.
+            mExpectedSelStart = -1;
+        }
+        final boolean ours = mMirror.onUpdateSelection(newSelStart, newSelEnd);
+        if (mExpectedSelStart >= 0 && mPackageName != null) {
+            if (!ours) {
+                addStrike();
+                mExpectedSelStart = -1;
+            } else if (newSelStart == mExpectedSelStart || !mMirror.hasPendingEdits()) {
+                sStrikes.remove(mPackageName);
+                mExpectedSelStart = -1;
+            }
+            // Otherwise the editor reported an earlier batch, keep waiting.
+        }
+        ++mGeneration;
+        mSelStart = Math.min(newSelStart, newSelEnd);
+        mSelEnd = Math.max(newSelStart, newSelEnd);
+        if (!mMirror.isValid()) scheduleMirrorReload();
+    }
+
+    public void onUpdateExtractedText(ExtractedText text) {
+        if (!mEnabled) return;
+        // Extracted text lags behind typing, it doesn't include edits that are still
+        // queued, being sent or not yet reported back.
+        if (!mOps.isEmpty() || mBatchesInFlight > 0 || mMirror.hasPendingEdits()) return;
+        mMirror.reload(text);
+    }
+
+    /**
+     * Reloads an invalidated mirror on the connection thread, so that the next key press
+     * usually finds it valid.
+     */
+    private void scheduleMirrorReload() {
+        if (mReloadPending || !mEnabled || mTarget == null) return;
+        mReloadPending = true;
+        final InputConnection ic = mTarget;
+        final int generation = mGeneration;
+        final int selStart = mSelStart;
+        final int selEnd = mSelEnd;
+        getThread().post(new Runnable() {
+            public void run() {
+                final CharSequence before =
+                        ic.getTextBeforeCursor(EditorTextMirror.MIRROR_CHARS, 0);
+                final CharSequence after =
+                        ic.getTextAfterCursor(EditorTextMirror.MIRROR_CHARS, 0);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mReloadPending = false;
+                        if (generation == mGeneration && ic == mTarget && !mMirror.isValid()) {
+                            mMirror.reload(before, after, selStart, selEnd);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the mirror, reading the text around the cursor from the editor first if
+     * the mirror was invalidated.
+     */
+    private EditorTextMirror getMirror() {
+        if (!mMirror.isValid()) {
+            sync();
+            mMirror.reload(super.getTextBeforeCursor(EditorTextMirror.MIRROR_CHARS, 0),
+                    super.getTextAfterCursor(EditorTextMirror.MIRROR_CHARS, 0), -1, -1);
+            // Merged commits from before the reload can't be checked against it.
+            mExpectedSelStart = -1;
+            mSkipStaleSelections = true;
+            mHandler.removeCallbacks(mStaleSelectionsDone);
+            mHandler.post(mStaleSelectionsDone);
+        }
+        return mMirror;
+    }
+
+    private void addStrike() {
+        Integer strikes = sStrikes.get(mPackageName);
+        int count = strikes == null ? 1 : strikes + 1;
+        if (count < MAX_STRIKES) {
+            sStrikes.put(mPackageName, count);
+            return;
+        }
+        Log.i(TAG, "Disabling commit coalescing for " + mPackageName);
+        sStrikes.remove(mPackageName);
+        sUncoalescedPackages.add(mPackageName);
+        // Callers get the plain connection from now on, make sure it's up to date first.
+        sync();
+        mEnabled = false;
+        mMirror.invalidate();
+    }
+
+    /* package */ static boolean isPasswordInputType(int inputType) {
+        final int variation = inputType & EditorInfo.TYPE_MASK_VARIATION;
+        switch (inputType & EditorInfo.TYPE_MASK_CLASS) {
+        case EditorInfo.TYPE_CLASS_TEXT:
+            return variation == EditorInfo.TYPE_TEXT_VARIATION_PASSWORD
+                    || variation == EditorInfo.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
+                    || variation == EditorInfo.TYPE_TEXT_VARIATION_WEB_PASSWORD;
+        case EditorInfo.TYPE_CLASS_NUMBER:
+            return variation == EditorInfo.TYPE_NUMBER_VARIATION_PASSWORD;
+        }
+        return false;
+    }
+
+    /**
+     * Hands all queued operations to the connection thread, to be sent in one batch edit.
+     */
+    public void flush() {
+        if (mOps.isEmpty()) return;
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
+        }
+        final ArrayList<Op> ops = mOps;
+        mOps = new ArrayList<Op>();
+        final int count = ops.size();
+        final ArrayList<Op> batch = new ArrayList<Op>(count);
+        int textOps = 0;
+        boolean textOnly = true;
+        for (int i = 0; i < count; ++i) {
+            final Op op = ops.get(i);
+            switch (op.type) {
+            case OP_TEXT:
+                // Merge a run of plain text commits into one.
+                int run = i;
+                if (isMergeable(op)) {
+                    while (run + 1 < count && isMergeable(ops.get(run + 1))) ++run;
+                }
+                if (run > i) {
+                    StringBuilder text = new StringBuilder();
+                    for (int j = i; j <= run; ++j) {
+                        text.append(ops.get(j).text);
+                    }
+                    op.text = text.toString();
+                    mMergedCommits += run - i;
+                    textOps += run - i + 1;
+                    i = run;
+                } else {
+                    if (op.arg1 != 1) textOnly = false;
+                    ++textOps;
+                }
+                break;
+            case OP_KEY:
+            case OP_DELETE:
+            case OP_CALL:
+                textOnly = false;
+                break;
+            }
+            batch.add(op);
+        }
+        ++mFlushes;
+        mFlushedOps += count;
+        // Only check the cursor when commits were merged and nothing else moved it. The
+        // mirror already includes this batch and any the editor hasn't acknowledged yet.
+        if (textOnly && textOps > 1 && mExpectedSelStart < 0) {
+            mExpectedSelStart = mMirror.getSelectionStart();
+        }
+
+        final InputConnection ic = mTarget;
+        ++mBatchesInFlight;
+        getThread().post(new Runnable() {
+            public void run() {
+                try {
+                    send(ic, batch);
+                } finally {
+                    mHandler.post(mBatchSent);
+                }
+            }
+        });
+    }
+
+    private static void send(InputConnection ic, ArrayList<Op> batch) {
+        ic.beginBatchEdit();
+        try {
+            for (int i = 0; i < batch.size(); ++i) {
+                final Op op = batch.get(i);
+                switch (op.type) {
+                case OP_TEXT:
+                    ic.commitText(op.text, op.arg1);
+                    break;
+                case OP_KEY:
+                    ic.sendKeyEvent(op.event);
+                    break;
+                case OP_DELETE:
+                    ic.deleteSurroundingText(op.arg1, op.arg2);
+                    break;
+                case OP_CLEAR_META:
+                    ic.clearMetaKeyStates(op.arg1);
+                    break;
+                case OP_BEGIN_BATCH:
+                    ic.beginBatchEdit();
+                    break;
+                case OP_END_BATCH:
+                    ic.endBatchEdit();
+                    break;
+                case OP_CALL:
+                    op.call.run();
+                    break;
+                }
+            }
+        } finally {
+            ic.endBatchEdit();
+        }
+    }
+
+    /**
+     * Sends the queue and waits until the connection thread has carried it out, before
+     * a call that needs the editor's answer or before the editor goes away.
+     */
+    public void sync() {
+        flush();
+        ++mSyncs;
+        if (!getThread().waitForIdle(SYNC_TIMEOUT_MS)) {
+            Log.w(TAG, "Editor is not responding, reading ahead of queued edits");
+        }
+    }
+
+    private static boolean isMergeable(Op op) {
+        return op.type == OP_TEXT && op.arg1 == 1 && !(op.text instanceof Spanned);
+    }
+
+    private Op enqueue(int type) {
+        final Op op = new Op();
+        op.type = type;
+        mOps.add(op);
+        ++mGeneration;
+        if (!mFrameScheduled) {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            mFrameScheduled = true;
+        }
+        return op;
+    }
+
+    /**
+     * Queues a call that changes the editor in ways the mirror doesn't follow.
+     */
+    private boolean enqueueCall(Runnable call) {
+        enqueue(OP_CALL).call = call;
+        mMirror.invalidate();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "(enabled=" + mEnabled + " flushes=" + mFlushes + " ops=" + mFlushedOps
+                + " merged=" + mMergedCommits + " syncs=" + mSyncs
+                + " uncoalesced=" + sUncoalescedPackages + ") " + mMirror;
+    }
+
+    // Queued operations
+
+    @Override
+    public boolean commitText(CharSequence text, int newCursorPosition) {
+        final Op op = enqueue(OP_TEXT);
+        op.text = text;
+        op.arg1 = newCursorPosition;
+        mMirror.commitText(text, newCursorPosition);
+        return true;
+    }
+
+    @Override
+    public boolean sendKeyEvent(KeyEvent event) {
+        enqueue(OP_KEY).event = event;
+        mMirror.sendKeyEvent(event);
+        return true;
+    }
+
+    @Override
+    public boolean deleteSurroundingText(int beforeLength, int afterLength) {
+        final Op op = enqueue(OP_DELETE);
+        op.arg1 = beforeLength;
+        op.arg2 = afterLength;
+        mMirror.deleteSurroundingText(beforeLength, afterLength);
+        return true;
+    }
+
+    @Override
+    public boolean clearMetaKeyStates(int states) {
+        enqueue(OP_CLEAR_META).arg1 = states;
+        return true;
+    }
+
+    @Override
+    public boolean beginBatchEdit() {
+        enqueue(OP_BEGIN_BATCH);
+        return true;
+    }
+
+    @Override
+    public boolean endBatchEdit() {
+        enqueue(OP_END_BATCH);
+        return true;
+    }
+
+    @Override
+    public boolean deleteSurroundingTextInCodePoints(final int beforeLength,
+            final int afterLength) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.deleteSurroundingTextInCodePoints(beforeLength, afterLength);
+            }
+        });
+    }
+
+    @Override
+    public boolean setComposingText(final CharSequence text, final int newCursorPosition) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.setComposingText(text, newCursorPosition);
+            }
+        });
+    }
+
+    @Override
+    public boolean setComposingRegion(final int start, final int end) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.setComposingRegion(start, end);
+            }
+        });
+    }
+
+    @Override
+    public boolean finishComposingText() {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.finishComposingText();
+            }
+        });
+    }
+
+    @Override
+    public boolean commitCompletion(final CompletionInfo text) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.commitCompletion(text);
+            }
+        });
+    }
+
+    @Override
+    public boolean commitCorrection(final CorrectionInfo correctionInfo) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.commitCorrection(correctionInfo);
+            }
+        });
+    }
+
+    @Override
+    public boolean setSelection(final int start, final int end) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.setSelection(start, end);
+            }
+        });
+    }
+
+    @Override
+    public boolean performEditorAction(final int editorAction) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.performEditorAction(editorAction);
+            }
+        });
+    }
+
+    @Override
+    public boolean performContextMenuAction(final int id) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.performContextMenuAction(id);
+            }
+        });
+    }
+
+    @Override
+    public boolean performPrivateCommand(final String action, final Bundle data) {
+        final InputConnection ic = mTarget;
+        return enqueueCall(new Runnable() {
+            public void run() {
+                ic.performPrivateCommand(action, data);
+            }
+        });
+    }
+
+    @Override
+    public void closeConnection() {
+        final InputConnection ic = mTarget;
+        enqueueCall(new Runnable() {
+            public void run() {
+                ic.closeConnection();
+            }
+        });
+        flush();
+    }
+
+    // Reads, answered from the mirror where possible
+
+    @Override
+    public CharSequence getTextBeforeCursor(int n, int flags) {
+        if (flags == 0) {
+            CharSequence text = getMirror().getTextBeforeCursor(n);
+            if (text != null) return text;
+        }
+        sync();
+        return super.getTextBeforeCursor(n, flags);
+    }
+
+    @Override
+    public CharSequence getTextAfterCursor(int n, int flags) {
+        if (flags == 0) {
+            CharSequence text = getMirror().getTextAfterCursor(n);
+            if (text != null) return text;
+        }
+        sync();
+        return super.getTextAfterCursor(n, flags);
+    }
+
+    @Override
+    public int getCursorCapsMode(int reqModes) {
+        int caps = getMirror().getCursorCapsMode(reqModes);
+        if (caps >= 0) return caps;
+        sync();
+        return super.getCursorCapsMode(reqModes);
+    }
+
+    @Override
+    public CharSequence getSelectedText(int flags) {
+        sync();
+        return super.getSelectedText(flags);
+    }
+
+    @Override
+    public SurroundingText getSurroundingText(int beforeLength, int afterLength, int flags) {
+        sync();
+        return super.getSurroundingText(beforeLength, afterLength, flags);
+    }
+
+    @Override
+    public ExtractedText getExtractedText(ExtractedTextRequest request, int flags) {
+        sync();
+        return super.getExtractedText(request, flags);
+    }
+
+    @Override
+    public boolean commitContent(InputContentInfo inputContentInfo, int flags, Bundle opts) {
+        // The caller needs to know whether the editor accepted the content.
+        sync();
+        mMirror.invalidate();
+        return super.commitContent(inputContentInfo, flags, opts);
+    }
+}
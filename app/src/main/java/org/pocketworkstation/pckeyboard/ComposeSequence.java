@@ -48,6 +48,12 @@ interface ComposeSequencing {
      * @param attr The current editor information context
      */
     public void updateShiftKeyState(EditorInfo attr);
+
+    /**
+     * Schedules a shift key state update for the next frame. Several requests within one
+     * frame result in a single update.
+     */
+    public void postUpdateShiftKeyState();
     
     /**
      * Retrieves the current input editor context information.
@@ -343,7 +349,7 @@ public class ComposeSequence {
             code = Character.toUpperCase(code);
         }
         bufferKey((char) code);
-        composeUser.updateShiftKeyState(composeUser.getCurrentInputEditorInfo());
+        composeUser.postUpdateShiftKeyState();
 
         String composed = get(composeBuffer.toString());
         if (composed != null) {
@@ -171,6 +171,32 @@ public class EditingUtil {
         return whitespace.contains(String.valueOf((char) code));
     }
 
+    /**
+     * Returns the number of characters to delete from the end of the text to remove the
+     * last word, along with any separators following it.
+     * @param before the text before the cursor
+     * @param sep the word separator characters
+     */
+    public static int getPreviousWordLength(CharSequence before, String sep) {
+        int start = before.length();
+        while (start > 0 && isWhitespace(before.charAt(start - 1), sep)) start--;
+        while (start > 0 && !isWhitespace(before.charAt(start - 1), sep)) start--;
+        return before.length() - start;
+    }
+
+    /**
+     * Returns the number of characters to delete from the end of the text to remove the
+     * last line. A line break directly before the cursor is removed on its own.
+     * @param before the text before the cursor
+     */
+    public static int getPreviousLineLength(CharSequence before) {
+        final int length = before.length();
+        if (length > 0 && before.charAt(length - 1) == '\n') return 1;
+        int start = length;
+        while (start > 0 && before.charAt(start - 1) != '\n') start--;
+        return length - start;
+    }
+
     private static final Pattern spaceRegex = Pattern.compile("\\s+");
 
     public static CharSequence getPreviousWord(InputConnection connection,
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.text.TextUtils;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.inputmethod.ExtractedText;
+
+/**
+ * Local copy of the editor text around the cursor. It is updated from our own edits as
+ * they are made, so reads such as the caps mode or the character before the cursor can be
+ * answered without a synchronous call to the editor.
+ *
+ * <p>Every edit records the selection it should result in. Selection updates from the
+ * editor that match none of them mean the editor changed the text by itself, e.g. the user
+ * moved the cursor or the app reformatted the field, and the mirror is invalidated. It is
+ * reloaded from the editor on the next read.
+ */
+class EditorTextMirror {
+    /** Characters kept on each side of the cursor. */
+    /* package */ static final int MIRROR_CHARS = 256;
+    private static final int MAX_EXPECTED = 16;
+    private static final int UNKNOWN = -1;
+
+    private final StringBuilder mBefore = new StringBuilder();
+    private final StringBuilder mAfter = new StringBuilder();
+    // True if mBefore reaches the start of the text, or mAfter its end.
+    private boolean mBeforeComplete;
+    private boolean mAfterComplete;
+    private int mSelectionLength;
+    private boolean mValid;
+
+    // Absolute selection start, or UNKNOWN until the editor reports one after a reload.
+    private int mSelStart = UNKNOWN;
+    // Selections (start, end) our edits since the last selection update should lead to
+    private final int[] mExpected = new int[MAX_EXPECTED * 2];
+    private int mExpectedCount;
+
+    private int mHits;
+    private int mMisses;
+    private int mReloads;
+    private int mInvalidations;
+
+    public boolean isValid() {
+        return mValid;
+    }
+
+    public void invalidate() {
+        if (mValid) ++mInvalidations;
+        mValid = false;
+        mSelStart = UNKNOWN;
+        mExpectedCount = 0;
+        mBefore.setLength(0);
+        mAfter.setLength(0);
+    }
+
+    /**
+     * Loads the mirror from text read from the editor.
+     * @param before text before the cursor, requested with a length of MIRROR_CHARS
+     * @param after text after the cursor, requested with a length of MIRROR_CHARS
+     * @param selStart the absolute selection start, if known
+     */
+    public void reload(CharSequence before, CharSequence after, int selStart, int selEnd) {
+        invalidate();
+        if (before == null || after == null) return;
+        ++mReloads;
+        mBefore.append(before);
+        mAfter.append(after);
+        // Editors return less than requested only at the start or end of the text.
+        mBeforeComplete = selStart >= 0
+                ? before.length() == selStart : before.length() < MIRROR_CHARS;
+        mAfterComplete = after.length() < MIRROR_CHARS;
+        mSelectionLength = selStart >= 0 && selEnd >= selStart ? selEnd - selStart : 0;
+        mSelStart = selStart >= 0 ? selStart : UNKNOWN;
+        mValid = true;
+    }
+
+    /**
+     * Loads the mirror from extracted text, if it holds the complete text.
+     */
+    public void reload(ExtractedText text) {
+        if (text == null || text.text == null || text.partialStartOffset >= 0) return;
+        final int length = text.text.length();
+        final int selStart = Math.max(0, Math.min(length,
+                Math.min(text.selectionStart, text.selectionEnd)));
+        final int selEnd = Math.max(selStart, Math.min(length,
+                Math.max(text.selectionStart, text.selectionEnd)));
+        invalidate();
+        ++mReloads;
+        final int beforeStart = Math.max(0, selStart - MIRROR_CHARS);
+        final int afterEnd = Math.min(length, selEnd + MIRROR_CHARS);
+        mBefore.append(text.text, beforeStart, selStart);
+        mAfter.append(text.text, selEnd, afterEnd);
+        mBeforeComplete = beforeStart == 0 && text.startOffset == 0;
+        mAfterComplete = afterEnd == length;
+        mSelectionLength = selEnd - selStart;
+        mSelStart = text.startOffset + selStart;
+        mValid = true;
+    }
+
+    /**
+     * Absolute selection start after all edits made so far, or -1 if not known.
+     */
+    public int getSelectionStart() {
+        return mValid ? mSelStart : UNKNOWN;
+    }
+
+    /**
+     * Returns true if the editor has yet to report the selection of some of our edits.
+     */
+    public boolean hasPendingEdits() {
+        return mValid && mExpectedCount > 0;
+    }
+
+    /**
+     * @return true if the selection is one our edits lead to, false if the editor changed
+     *     the text by itself and the mirror was invalidated
+     */
+    public boolean onUpdateSelection(int newSelStart, int newSelEnd) {
+        if (!mValid) return false;
+        final int start = Math.min(newSelStart, newSelEnd);
+        final int end = Math.max(newSelStart, newSelEnd);
+        if (mSelStart == UNKNOWN) {
+            // First report after a reload, it positions the mirrored text.
+            if (end - start == mSelectionLength) {
+                mSelStart = start;
+                mExpectedCount = 0;
+                return true;
+            }
+            invalidate();
+            return false;
+        }
+        for (int i = 0; i < mExpectedCount; ++i) {
+            if (mExpected[i * 2] == start && mExpected[i * 2 + 1] == end) {
+                // Drop this and older expectations, the editor has caught up to them.
+                final int remaining = mExpectedCount - i - 1;
+                System.arraycopy(mExpected, (i + 1) * 2, mExpected, 0, remaining * 2);
+                mExpectedCount = remaining;
+                return true;
+            }
+        }
+        if (mExpectedCount == 0 && start == mSelStart
+                && end - start == mSelectionLength) {
+            return true;
+        }
+        invalidate();
+        return false;
+    }
+
+    private void expectSelection() {
+        if (mSelStart == UNKNOWN) return;
+        if (mExpectedCount == MAX_EXPECTED) {
+            System.arraycopy(mExpected, 2, mExpected, 0, (MAX_EXPECTED - 1) * 2);
+            --mExpectedCount;
+        }
+        mExpected[mExpectedCount * 2] = mSelStart;
+        mExpected[mExpectedCount * 2 + 1] = mSelStart + mSelectionLength;
+        ++mExpectedCount;
+    }
+
+    // Edits made by the IME
+
+    public void commitText(CharSequence text, int newCursorPosition) {
+        if (!mValid) return;
+        if (newCursorPosition != 1) {
+            invalidate();
+            return;
+        }
+        mSelectionLength = 0;
+        mBefore.append(text);
+        trimBefore();
+        if (mSelStart != UNKNOWN) mSelStart += text.length();
+        expectSelection();
+    }
+
+    public void deleteSurroundingText(int beforeLength, int afterLength) {
+        if (!mValid) return;
+        if ((beforeLength > mBefore.length() && !mBeforeComplete)
+                || (afterLength > mAfter.length() && !mAfterComplete)) {
+            invalidate();
+            return;
+        }
+        beforeLength = Math.min(beforeLength, mBefore.length());
+        afterLength = Math.min(afterLength, mAfter.length());
+        mBefore.setLength(mBefore.length() - beforeLength);
+        mAfter.delete(0, afterLength);
+        if (mSelStart != UNKNOWN) mSelStart -= beforeLength;
+        expectSelection();
+    }
+
+    public void sendKeyEvent(KeyEvent event) {
+        if (!mValid || event.getAction() != KeyEvent.ACTION_DOWN) return;
+        final int keyCode = event.getKeyCode();
+        if (KeyEvent.isModifierKey(keyCode)) return;
+        if (keyCode == KeyEvent.KEYCODE_DEL) {
+            if (mSelectionLength > 0) {
+                mSelectionLength = 0;
+            } else {
+                int count = charsBeforeCursor();
+                if (count < 0) {
+                    invalidate();
+                    return;
+                }
+                mBefore.setLength(mBefore.length() - count);
+                if (mSelStart != UNKNOWN) mSelStart -= count;
+            }
+            expectSelection();
+            return;
+        }
+        if (keyCode == KeyEvent.KEYCODE_FORWARD_DEL && mSelectionLength == 0
+                && mAfter.length() > 0) {
+            mAfter.deleteCharAt(0);
+            expectSelection();
+            return;
+        }
+        final int meta = event.getMetaState();
+        final int ch = (meta & (KeyEvent.META_CTRL_MASK | KeyEvent.META_ALT_MASK
+                | KeyEvent.META_META_MASK)) == 0 ? event.getUnicodeChar(meta) : 0;
+        if (keyCode != KeyEvent.KEYCODE_ENTER && ch > 0
+                && (ch & KeyCharacterMap.COMBINING_ACCENT) == 0) {
+            commitText(String.valueOf((char) ch), 1);
+            return;
+        }
+        // Cursor movement, Enter, shortcuts and the like: let the editor tell us.
+        invalidate();
+    }
+
+    /** Number of chars a backspace removes, or -1 if not known. */
+    private int charsBeforeCursor() {
+        final int length = mBefore.length();
+        if (length == 0) return mBeforeComplete ? 0 : -1;
+        if (length >= 2 && Character.isLowSurrogate(mBefore.charAt(length - 1))
+                && Character.isHighSurrogate(mBefore.charAt(length - 2))) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private void trimBefore() {
+        final int excess = mBefore.length() - MIRROR_CHARS;
+        if (excess > 0) {
+            mBefore.delete(0, excess);
+            mBeforeComplete = false;
+        }
+    }
+
+    // Reads
+
+    /**
+     * @return the text, or null if the mirror can't answer
+     */
+    public CharSequence getTextBeforeCursor(int n) {
+        if (!mValid || n < 0) return miss();
+        final int length = mBefore.length();
+        if (n > length && !mBeforeComplete) return miss();
+        ++mHits;
+        return mBefore.substring(length - Math.min(n, length));
+    }
+
+    /**
+     * @return the text, or null if the mirror can't answer
+     */
+    public CharSequence getTextAfterCursor(int n) {
+        if (!mValid || n < 0 || mSelectionLength > 0) return miss();
+        final int length = mAfter.length();
+        if (n > length && !mAfterComplete) return miss();
+        ++mHits;
+        return mAfter.substring(0, Math.min(n, length));
+    }
+
+    /**
+     * Same as {@link TextUtils#getCapsMode} on the editor text at the cursor.
+     * @return the caps mode, or -1 if the mirror can't answer
+     */
+    public int getCursorCapsMode(int reqModes) {
+        if (!mValid) {
+            miss();
+            return -1;
+        }
+        if (!mBeforeComplete) {
+            // The caps mode looks back over spaces, quotes and brackets, make sure that
+            // it doesn't run into the start of the mirrored text.
+            int i = mBefore.length() - 1;
+            while (i >= 0 && isCapsTransparent(mBefore.charAt(i))) --i;
+            if (i < 0) {
+                miss();
+                return -1;
+            }
+        }
+        ++mHits;
+        return TextUtils.getCapsMode(mBefore, mBefore.length(), reqModes);
+    }
+
+    private static boolean isCapsTransparent(char c) {
+        return Character.isWhitespace(c) || c == '"' || c == '\'' || c == '('
+                || c == '[' || c == '{' || c == ')' || c == ']' || c == '}'
+                || Character.getType(c) == Character.START_PUNCTUATION
+                || Character.getType(c) == Character.INITIAL_QUOTE_PUNCTUATION
+                || Character.getType(c) == Character.FINAL_QUOTE_PUNCTUATION;
+    }
+
+    private CharSequence miss() {
+        ++mMisses;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "EditorTextMirror(valid=" + mValid + " hits=" + mHits + " misses=" + mMisses
+                + " reloads=" + mReloads + " invalidations=" + mInvalidations + ")";
+    }
+}
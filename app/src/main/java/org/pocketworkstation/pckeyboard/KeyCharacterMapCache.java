@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseIntArray;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+
+/**
+ * Maps characters to the key code and meta state that type them on the virtual keyboard's
+ * key character map, so characters can be sent as key events when modifiers are active.
+ *
+ * <p>The table is built once by walking all key codes with the meta states that select a
+ * character (the same data {@link KeyCharacterMap#getEvents} searches through). Start
+ * {@link #prepareAsync} early, lookups before it finished build the table themselves.
+ */
+class KeyCharacterMapCache {
+    private static final String TAG = "PCKeyboardKcm";
+
+    /* package */ static final int NOT_FOUND = -1;
+
+    // In order of preference, a character reachable without modifiers is sent that way.
+    private static final int[] META_STATES = {
+        0,
+        KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON,
+        KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON,
+        KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON
+                | KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON,
+    };
+
+    // Character -> key code in the low 16 bits, meta state above
+    private static SparseIntArray sMap;
+    private static boolean sStarted;
+
+    private KeyCharacterMapCache() {
+    }
+
+    /**
+     * Builds the table on a background thread.
+     */
+    public static synchronized void prepareAsync() {
+        if (sStarted) return;
+        sStarted = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                getMap();
+            }
+        }, "KeyCharacterMap");
+        thread.start();
+    }
+
+    private static synchronized SparseIntArray getMap() {
+        if (sMap == null) {
+            sStarted = true;
+            sMap = build();
+        }
+        return sMap;
+    }
+
+    private static SparseIntArray build() {
+        final SparseIntArray map = new SparseIntArray(256);
+        final KeyCharacterMap kcm;
+        try {
+            kcm = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+        } catch (KeyCharacterMap.UnavailableException e) {
+            Log.w(TAG, "No virtual key character map: " + e);
+            return map;
+        }
+        final int maxKeyCode = KeyEvent.getMaxKeyCode();
+        for (int meta : META_STATES) {
+            for (int keyCode = 1; keyCode <= maxKeyCode; ++keyCode) {
+                // Modifier keys don't type anything, and would confuse the chord sender.
+                if (KeyEvent.isModifierKey(keyCode)) continue;
+                final int ch = kcm.get(keyCode, meta);
+                if (ch <= 0 || (ch & KeyCharacterMap.COMBINING_ACCENT) != 0) continue;
+                if (map.indexOfKey(ch) >= 0) continue;
+                map.put(ch, (meta << 16) | keyCode);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the key for a character, to be decoded with {@link #getKeyCode} and
+     * {@link #getMetaState}, or NOT_FOUND.
+     */
+    public static int lookup(char ch) {
+        return getMap().get(ch, NOT_FOUND);
+    }
+
+    public static int getKeyCode(int key) {
+        return key & 0xffff;
+    }
+
+    public static int getMetaState(int key) {
+        return key >>> 16;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.SparseIntArray;
+
+import org.pocketworkstation.pckeyboard.Keyboard.Key;
+
+import java.util.Arrays;
+
+/**
+ * Per-keyboard cache of the resolved label, hint and alt hint strings of each key, together
+ * with the text sizes and baseline coordinates used to draw them. With a warm cache, redrawing
+ * a key only needs to issue drawText calls.
+ *
+ * <p>Entries are stored per key index and shift state. They are validated against the key's
+ * label fields and size on lookup, since LatinKeyboard replaces some labels (Enter, 123, F1)
+ * after the keyboard has been attached to the view.
+ */
+class KeyLabelLayoutCache {
+    // Distance from horizontal center of the key, proportional to key label text height.
+    private static final float KEY_LABEL_VERTICAL_ADJUSTMENT_FACTOR = 0.55f;
+    private static final String KEY_LABEL_HEIGHT_REFERENCE_CHAR = "H";
+    private static final int SHIFT_STATE_COUNT = Keyboard.SHIFT_CAPS_LOCKED + 1;
+
+    static final class Entry {
+        // Key state the entry was computed for
+        CharSequence srcLabel;
+        CharSequence srcShiftLabel;
+        CharSequence srcCapsLabel;
+        int width;
+        int height;
+
+        /** Main label, or null if the key has no label. */
+        String label;
+        /** Spacing accent drawn over the placeholder for dead keys, else null. */
+        String labelAccent;
+        int labelSize;
+        int labelX;
+        float labelBaseline;
+
+        /** Shifted-character hint, or null if no hint is drawn. */
+        String hint;
+        String hintAccent;
+        int hintBaseline;
+
+        /** Popup-character hint, or null if no alt hint is drawn. */
+        String altHint;
+        String altHintAccent;
+        int altHintBaseline;
+
+        /** Shared by hint and alt hint. */
+        int hintSize;
+        int hintX;
+
+        boolean isValidFor(Key key) {
+            return srcLabel == key.label
+                    && srcShiftLabel == key.shiftLabel
+                    && srcCapsLabel == key.capsLabel
+                    && width == key.width
+                    && height == key.height;
+        }
+    }
+
+    // This map caches key label text height in pixel as value and key label text size as map key.
+    private final SparseIntArray mTextHeightCache = new SparseIntArray();
+    private final Rect mTextBounds = new Rect();
+    private Key[] mKeys;
+    private Entry[] mEntries;
+    private float mLabelScale;
+    private float mKeyTextSize;
+    private float mLabelTextSize;
+
+    /**
+     * Attaches the cache to a key set. Entries are dropped if the keys or the label scale
+     * changed since the last call.
+     * @return true if the cache was reset
+     */
+    public boolean setKeys(Key[] keys, float labelScale) {
+        if (keys == mKeys && labelScale == mLabelScale && mEntries != null) return false;
+        mKeys = keys;
+        mLabelScale = labelScale;
+        final int keyCount = keys == null ? 0 : keys.length;
+        mEntries = new Entry[keyCount * SHIFT_STATE_COUNT];
+        if (keyCount == 0) return true;
+
+        // Scale the key labels based on the median key size.
+        int[] keyWidths = new int[keyCount];
+        int[] keyHeights = new int[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keyWidths[i] = keys[i].width;
+            keyHeights[i] = keys[i].height;
+        }
+        Arrays.sort(keyWidths);
+        Arrays.sort(keyHeights);
+        int medianKeyWidth = keyWidths[keyCount / 2];
+        int medianKeyHeight = keyHeights[keyCount / 2];
+        // Use 60% of the smaller of width or height. This is kind of arbitrary.
+        mKeyTextSize = Math.min(medianKeyHeight * 6 / 10, medianKeyWidth * 6 / 10);
+        mLabelTextSize = mKeyTextSize * 3 / 4;
+        return true;
+    }
+
+    public float getKeyTextSize() {
+        return mKeyTextSize;
+    }
+
+    public void clear() {
+        mKeys = null;
+        mEntries = null;
+        mTextHeightCache.clear();
+    }
+
+    /**
+     * Returns the label layout for the given key and shift state, computing it if needed. The
+     * paint objects must already be set up with the typefaces used for drawing, their text size
+     * is changed as a side effect on a cache miss.
+     */
+    public Entry get(int keyIndex, Key key, int shiftState, Paint paint, Paint paintHint,
+            Rect padding, boolean hints7Bit, boolean hintsAll) {
+        if (shiftState < 0 || shiftState >= SHIFT_STATE_COUNT) shiftState = Keyboard.SHIFT_OFF;
+        final int index = keyIndex * SHIFT_STATE_COUNT + shiftState;
+        Entry entry = mEntries[index];
+        if (entry != null && entry.isValidFor(key)) return entry;
+        if (entry == null) {
+            entry = new Entry();
+            mEntries[index] = entry;
+        }
+        compute(entry, key, paint, paintHint, padding, hints7Bit, hintsAll);
+        return entry;
+    }
+
+    private void compute(Entry entry, Key key, Paint paint, Paint paintHint, Rect padding,
+            boolean hints7Bit, boolean hintsAll) {
+        entry.srcLabel = key.label;
+        entry.srcShiftLabel = key.shiftLabel;
+        entry.srcCapsLabel = key.capsLabel;
+        entry.width = key.width;
+        entry.height = key.height;
+        entry.hint = null;
+        entry.hintAccent = null;
+        entry.altHint = null;
+        entry.altHintAccent = null;
+
+        // Switch the character to uppercase if shift is pressed
+        final String label = key.getCaseLabel();
+        entry.label = label;
+        entry.labelAccent = null;
+        if (label == null) return;
+
+        // For characters, use large font. For labels like "Done", use small font.
+        final int labelSize;
+        if (label.length() > 1 && key.codes.length < 2) {
+            labelSize = (int)(mLabelTextSize * mLabelScale);
+        } else {
+            labelSize = (int)(mKeyTextSize * mLabelScale);
+        }
+        paint.setTextSize(labelSize);
+        final int labelHeight = getLabelHeight(paint, labelSize);
+        entry.labelSize = labelSize;
+        entry.labelX = (key.width + padding.left - padding.right) / 2;
+        final int centerY = (key.height + padding.top - padding.bottom) / 2;
+        entry.labelBaseline = centerY + labelHeight * KEY_LABEL_VERTICAL_ADJUSTMENT_FACTOR;
+        if (key.isDeadKey()) {
+            entry.labelAccent = DeadAccentSequence.getSpacing(label.charAt(0));
+        }
+
+        final int hintTextSize = (int)(mKeyTextSize * 0.6 * mLabelScale);
+        entry.hintSize = hintTextSize;
+        entry.hintX = key.width - padding.right;
+
+        // Hint label (if present) drawn behind the main key
+        String hint = key.getHintLabel(hints7Bit, hintsAll);
+        final boolean hasHint = !hint.equals("");
+        if (hasHint && !(key.isShifted() && key.shiftLabel != null
+                && hint.charAt(0) == key.shiftLabel.charAt(0))) {
+            paintHint.setTextSize(hintTextSize);
+            final int hintLabelHeight = getLabelHeight(paintHint, hintTextSize);
+            entry.hint = hint;
+            entry.hintAccent = getAccentIfNonSpacing(hint);
+            entry.hintBaseline = padding.top + hintLabelHeight * 12/10;
+        }
+
+        // Alternate hint label (if present) drawn behind the main key
+        String altHint = key.getAltHintLabel(hints7Bit, hintsAll);
+        if (!altHint.equals("")) {
+            paintHint.setTextSize(hintTextSize);
+            final int hintLabelHeight = getLabelHeight(paintHint, hintTextSize);
+            entry.altHint = altHint;
+            entry.altHintAccent = getAccentIfNonSpacing(altHint);
+            entry.altHintBaseline = padding.top + hintLabelHeight * (hasHint ? 26 : 12)/10;
+        }
+    }
+
+    private static String getAccentIfNonSpacing(String hint) {
+        final char c = hint.charAt(0);
+        if (Character.getType(c) == Character.NON_SPACING_MARK) {
+            return DeadAccentSequence.getSpacing(c);
+        }
+        return null;
+    }
+
+    private int getLabelHeight(Paint paint, int labelSize) {
+        int labelHeight = mTextHeightCache.get(labelSize, -1);
+        if (labelHeight < 0) {
+            paint.getTextBounds(KEY_LABEL_HEIGHT_REFERENCE_CHAR, 0, 1, mTextBounds);
+            labelHeight = mTextBounds.height();
+            mTextHeightCache.put(labelSize, labelHeight);
+        }
+        return labelHeight;
+    }
+}
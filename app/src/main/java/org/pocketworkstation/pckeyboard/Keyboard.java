@@ -29,8 +29,11 @@ import android.util.TypedValue;
 import android.util.Xml;
 import android.util.DisplayMetrics;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -100,6 +103,18 @@ public class Keyboard {
 
     private float mHorizontalPad;
     private float mVerticalPad;
+    /** Dimension resources the paddings were read from, or zero for literal values. */
+    private int mHorizontalPadResId;
+    private int mVerticalPadResId;
+    /**
+     * Dimension resources the default key height and row gap were read from, or zero,
+     * and their values at the time. Resources such as values-land key_height can't be
+     * rescaled to, the keyboard has to be rebuilt when they change.
+     */
+    private int mKeyHeightResId;
+    private int mVerticalGapResId;
+    private float mKeyHeightDimen;
+    private float mVerticalGapDimen;
 
     /** Default key width */
     private float mDefaultWidth;
@@ -110,6 +125,15 @@ public class Keyboard {
     /** Default gap between rows */
     private int mDefaultVerticalGap;
 
+    /**
+     * Unrounded default height, row gap and total height, so that repeated rescaling
+     * doesn't accumulate rounding errors. Negative until the first rescale, which takes
+     * them from the int values.
+     */
+    private float mRealDefaultHeight = -1;
+    private float mRealDefaultVerticalGap;
+    private float mRealTotalHeight;
+
     public static final int SHIFT_OFF = 0;
     public static final int SHIFT_ON = 1;
     public static final int SHIFT_LOCKED = 2;
@@ -165,9 +189,81 @@ public class Keyboard {
     private int mCellHeight;
     private int[][] mGridNeighbors;
     private int mProximityThreshold;
+    /** Settings the layout was built with. */
+    private LayoutSettings mLayoutSettings;
+    /** Set if the layout failed to parse, such keyboards are not cached. */
+    private boolean mParseError;
+    /** Reused while parsing key codes, keys are always built on the thread loading the layout. */
+    private final TypedValue mScratchValue = new TypedValue();
     /** Number of key widths from current touch point to search for nearest keys. */
     private static float SEARCH_DISTANCE = 1.8f;
 
+    /**
+     * Parsed popup layout templates, keyed by template resource, default height and display
+     * configuration. Only templates without keys are used as prototypes.
+     */
+    private static final HashMap<TemplateKey, Keyboard> sPopupTemplates =
+            new HashMap<TemplateKey, Keyboard>();
+
+    private static final class TemplateKey {
+        final int resId;
+        final int defaultHeight;
+        final int displayWidth;
+        final int displayHeight;
+        final int densityDpi;
+
+        TemplateKey(int resId, int defaultHeight, DisplayMetrics dm) {
+            this.resId = resId;
+            this.defaultHeight = defaultHeight;
+            this.displayWidth = dm.widthPixels;
+            this.displayHeight = dm.heightPixels;
+            this.densityDpi = dm.densityDpi;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TemplateKey)) return false;
+            TemplateKey other = (TemplateKey) o;
+            return resId == other.resId && defaultHeight == other.defaultHeight
+                    && displayWidth == other.displayWidth
+                    && displayHeight == other.displayHeight
+                    && densityDpi == other.densityDpi;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = resId;
+            h = 31 * h + defaultHeight;
+            h = 31 * h + displayWidth;
+            h = 31 * h + displayHeight;
+            h = 31 * h + densityDpi;
+            return h;
+        }
+    }
+
+    /**
+     * The global settings that affect how a layout is built. They are captured once when a
+     * keyboard is requested, so construction doesn't read {@link LatinIME#sKeyboardSettings}
+     * while it runs and can happen on a worker thread.
+     */
+    /* package */ static final class LayoutSettings {
+        final Locale inputLocale;
+        final int popupKeyboardFlags;
+        final float topRowScale;
+        final boolean useExtension;
+
+        LayoutSettings(GlobalKeyboardSettings settings) {
+            inputLocale = settings.inputLocale;
+            popupKeyboardFlags = settings.popupKeyboardFlags;
+            topRowScale = settings.topRowScale;
+            useExtension = settings.useExtension;
+        }
+
+        static LayoutSettings current() {
+            return new LayoutSettings(LatinIME.sKeyboardSettings);
+        }
+    }
+
     /**
      * Container for keys in the keyboard. All keys in a row are at the same Y-coordinate.
      * Some of the key size defaults can be overridden per row from what the {@link Keyboard}
@@ -201,23 +297,22 @@ public class Keyboard {
 
         public Row(Resources res, Keyboard parent, XmlResourceParser parser) {
             this.parent = parent;
+            // Keyboard_Row also declares the size attributes, so a single
+            // obtainAttributes pass resolves everything for the row.
             TypedArray a = res.obtainAttributes(Xml.asAttributeSet(parser),
-                    R.styleable.Keyboard);
+                    R.styleable.Keyboard_Row);
             defaultWidth = getDimensionOrFraction(a,
-                    R.styleable.Keyboard_keyWidth,
+                    R.styleable.Keyboard_Row_keyWidth,
                     parent.mDisplayWidth, parent.mDefaultWidth);
             defaultHeight = Math.round(getDimensionOrFraction(a,
-                    R.styleable.Keyboard_keyHeight,
+                    R.styleable.Keyboard_Row_keyHeight,
                     parent.mDisplayHeight, parent.mDefaultHeight));
             defaultHorizontalGap = getDimensionOrFraction(a,
-                    R.styleable.Keyboard_horizontalGap,
+                    R.styleable.Keyboard_Row_horizontalGap,
                     parent.mDisplayWidth, parent.mDefaultHorizontalGap);
             verticalGap = Math.round(getDimensionOrFraction(a,
-                    R.styleable.Keyboard_verticalGap,
+                    R.styleable.Keyboard_Row_verticalGap,
                     parent.mDisplayHeight, parent.mDefaultVerticalGap));
-            a.recycle();
-            a = res.obtainAttributes(Xml.asAttributeSet(parser),
-                    R.styleable.Keyboard_Row);
             mode = a.getResourceId(R.styleable.Keyboard_Row_keyboardMode,
                     0);
             extension = a.getBoolean(R.styleable.Keyboard_Row_extension, false);
@@ -226,7 +321,7 @@ public class Keyboard {
                 // Apply optional scale factor to top (5th) row and/or extension row. If extension
                 // row is visible on a 5-row keyboard, both use the smaller size.
                 boolean isTop = (extension || parent.mRowCount - parent.mExtensionRowCount <= 0);
-                float topScale = LatinIME.sKeyboardSettings.topRowScale;
+                float topScale = parent.mLayoutSettings.topRowScale;
                 // Apply scale factor to the top row(s), and redistribute the saved space to the
                 // remaining rows. Saved space from the extension row doesn't count here since
                 // the extension row is not part of the configured height percentage.
@@ -272,11 +367,15 @@ public class Keyboard {
         public Drawable icon;
         /** Preview version of the icon, for the preview popup */
         public Drawable iconPreview;
+        /** Resource ids of the layout's icons, or zero. Used by the geometry cache. */
+        private int iconResId;
+        private int iconPreviewResId;
         /** Width of the key, not including the gap */
         public int width;
         /** Height of the key, not including the gap */
         private float realWidth;
         public int height;
+        private float realHeight;
         /** The horizontal gap before this key */
         public int gap;
         private float realGap;
@@ -287,6 +386,7 @@ public class Keyboard {
         private float realX;
         /** Y coordinate of the key in the keyboard layout */
         public int y;
+        private float realY;
         /** The current pressed state of this key */
         public boolean pressed;
         /** If this is a sticky key, is it on or locked? */
@@ -368,6 +468,7 @@ public class Keyboard {
         public Key(Row parent) {
             keyboard = parent.parent;
             height = parent.defaultHeight;
+            realHeight = parent.defaultHeight;
             width = Math.round(parent.defaultWidth);
             realWidth = parent.defaultWidth;
             gap = Math.round(parent.defaultHorizontalGap);
@@ -389,31 +490,31 @@ public class Keyboard {
             this.x = x;
             this.y = y;
 
+            // Keyboard_Key also declares the size attributes, so a single
+            // obtainAttributes pass resolves everything for the key.
             TypedArray a = res.obtainAttributes(Xml.asAttributeSet(parser),
-                    R.styleable.Keyboard);
+                    R.styleable.Keyboard_Key);
 
             realWidth = getDimensionOrFraction(a,
-                    R.styleable.Keyboard_keyWidth,
+                    R.styleable.Keyboard_Key_keyWidth,
                     keyboard.mDisplayWidth, parent.defaultWidth);
-            float realHeight = getDimensionOrFraction(a,
-                    R.styleable.Keyboard_keyHeight,
+            realHeight = getDimensionOrFraction(a,
+                    R.styleable.Keyboard_Key_keyHeight,
                     keyboard.mDisplayHeight, parent.defaultHeight);
             realHeight -= parent.parent.mVerticalPad;
             height = Math.round(realHeight);
+            this.realY = y + parent.parent.mVerticalPad / 2;
             this.y += parent.parent.mVerticalPad / 2;
             realGap = getDimensionOrFraction(a,
-                    R.styleable.Keyboard_horizontalGap,
+                    R.styleable.Keyboard_Key_horizontalGap,
                     keyboard.mDisplayWidth, parent.defaultHorizontalGap);
             realGap += parent.parent.mHorizontalPad;
             realWidth -= parent.parent.mHorizontalPad;
             width = Math.round(realWidth);
             gap = Math.round(realGap);
-            a.recycle();
-            a = res.obtainAttributes(Xml.asAttributeSet(parser),
-                    R.styleable.Keyboard_Key);
             this.realX = this.x + realGap - parent.parent.mHorizontalPad / 2;
             this.x = Math.round(this.realX);
-            TypedValue codesValue = new TypedValue();
+            final TypedValue codesValue = keyboard.mScratchValue;
             a.getValue(R.styleable.Keyboard_Key_codes,
                     codesValue);
             if (codesValue.type == TypedValue.TYPE_INT_DEC
@@ -423,6 +524,7 @@ public class Keyboard {
                 codes = parseCSV(codesValue.string.toString());
             }
 
+            iconPreviewResId = a.getResourceId(R.styleable.Keyboard_Key_iconPreview, 0);
             iconPreview = a.getDrawable(R.styleable.Keyboard_Key_iconPreview);
             if (iconPreview != null) {
                 iconPreview.setBounds(0, 0, iconPreview.getIntrinsicWidth(),
@@ -441,6 +543,7 @@ public class Keyboard {
             isCursor = a.getBoolean(
                     R.styleable.Keyboard_Key_isCursor, false);
 
+            iconResId = a.getResourceId(R.styleable.Keyboard_Key_keyIcon, 0);
             icon = a.getDrawable(
                     R.styleable.Keyboard_Key_keyIcon);
             if (icon != null) {
@@ -456,7 +559,7 @@ public class Keyboard {
             if (codes == null && !TextUtils.isEmpty(label)) {
                 codes = getFromString(label);
                 if (codes != null && codes.length == 1) {
-                    final Locale locale = LatinIME.sKeyboardSettings.inputLocale;
+                    final Locale locale = keyboard.mLayoutSettings.inputLocale;
                     String upperLabel = label.toString().toUpperCase(locale);
                     if (shiftLabel == null) {
                         // No shiftLabel supplied, auto-set to uppercase if possible.
@@ -478,11 +581,11 @@ public class Keyboard {
                         }
                     }
                 }
-                if ((LatinIME.sKeyboardSettings.popupKeyboardFlags & POPUP_DISABLE) != 0) {
+                if ((keyboard.mLayoutSettings.popupKeyboardFlags & POPUP_DISABLE) != 0) {
                     popupCharacters = null;
                     popupResId = 0;
                 }
-                if ((LatinIME.sKeyboardSettings.popupKeyboardFlags & POPUP_AUTOREPEAT) != 0) {
+                if ((keyboard.mLayoutSettings.popupKeyboardFlags & POPUP_AUTOREPEAT) != 0) {
                     // Assume POPUP_DISABLED is set too, otherwise things may get weird.
                     repeatable = true;
                 }
@@ -491,6 +594,93 @@ public class Keyboard {
             a.recycle();
         }
 
+        private static final int FLAG_STICKY = 0x01;
+        private static final int FLAG_POPUP_REVERSED = 0x02;
+        private static final int FLAG_CURSOR = 0x04;
+        private static final int FLAG_MODIFIER = 0x08;
+        private static final int FLAG_REPEATABLE = 0x10;
+        private static final int FLAG_SIMPLE_UPPERCASE = 0x20;
+        private static final int FLAG_DISTINCT_UPPERCASE = 0x40;
+
+        /**
+         * Writes the layout attributes of this key. Returns false if they can't be restored
+         * faithfully, i.e. a label is styled text or an icon didn't come from a resource.
+         */
+        boolean writeGeometry(DataOutputStream out) throws IOException {
+            if ((icon != null && iconResId == 0)
+                    || (iconPreview != null && iconPreviewResId == 0)) {
+                return false;
+            }
+            writeIntArray(out, codes);
+            if (!writeText(out, label) || !writeText(out, shiftLabel)
+                    || !writeText(out, capsLabel) || !writeText(out, text)
+                    || !writeText(out, popupCharacters)) {
+                return false;
+            }
+            out.writeInt(icon != null ? iconResId : 0);
+            out.writeInt(iconPreview != null ? iconPreviewResId : 0);
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(gap);
+            out.writeFloat(realX);
+            out.writeFloat(realWidth);
+            out.writeFloat(realGap);
+            out.writeFloat(realY);
+            out.writeFloat(realHeight);
+            out.writeInt(edgeFlags);
+            out.writeInt(popupResId);
+            out.writeInt((sticky ? FLAG_STICKY : 0)
+                    | (popupReversed ? FLAG_POPUP_REVERSED : 0)
+                    | (isCursor ? FLAG_CURSOR : 0)
+                    | (modifier ? FLAG_MODIFIER : 0)
+                    | (repeatable ? FLAG_REPEATABLE : 0)
+                    | (isSimpleUppercase ? FLAG_SIMPLE_UPPERCASE : 0)
+                    | (isDistinctUppercase ? FLAG_DISTINCT_UPPERCASE : 0));
+            return true;
+        }
+
+        void readGeometry(DataInputStream in, Resources res) throws IOException {
+            codes = readIntArray(in);
+            label = readText(in);
+            shiftLabel = readText(in);
+            capsLabel = readText(in);
+            text = readText(in);
+            popupCharacters = readText(in);
+            iconResId = in.readInt();
+            iconPreviewResId = in.readInt();
+            if (iconResId != 0) {
+                icon = res.getDrawable(iconResId);
+                icon.setBounds(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight());
+            }
+            if (iconPreviewResId != 0) {
+                iconPreview = res.getDrawable(iconPreviewResId);
+                iconPreview.setBounds(0, 0, iconPreview.getIntrinsicWidth(),
+                        iconPreview.getIntrinsicHeight());
+            }
+            x = in.readInt();
+            y = in.readInt();
+            width = in.readInt();
+            height = in.readInt();
+            gap = in.readInt();
+            realX = in.readFloat();
+            realWidth = in.readFloat();
+            realGap = in.readFloat();
+            realY = in.readFloat();
+            realHeight = in.readFloat();
+            edgeFlags = in.readInt();
+            popupResId = in.readInt();
+            int flags = in.readInt();
+            sticky = (flags & FLAG_STICKY) != 0;
+            popupReversed = (flags & FLAG_POPUP_REVERSED) != 0;
+            isCursor = (flags & FLAG_CURSOR) != 0;
+            modifier = (flags & FLAG_MODIFIER) != 0;
+            repeatable = (flags & FLAG_REPEATABLE) != 0;
+            isSimpleUppercase = (flags & FLAG_SIMPLE_UPPERCASE) != 0;
+            isDistinctUppercase = (flags & FLAG_DISTINCT_UPPERCASE) != 0;
+        }
+
         public boolean isDistinctCaps() {
             return isDistinctUppercase && keyboard.isShiftCaps();
         }
@@ -618,10 +808,25 @@ public class Keyboard {
             return popup.toString();
         }
 
+        /**
+         * Returns the long-press keyboard for this key, shared through the process-wide
+         * {@link PopupKeyboardCache} with other keys that have the same popup content.
+         */
         public Keyboard getPopupKeyboard(Context context, int padding) {
+            final PopupKeyboardCache cache = PopupKeyboardCache.getInstance();
+            final int displayWidth = context.getResources().getDisplayMetrics().widthPixels;
+            final int uiMode = context.getResources().getConfiguration().uiMode;
             if (popupCharacters == null) {
                 if (popupResId != 0) {
-                    return new Keyboard(context, keyboard.mDefaultHeight, popupResId);
+                    PopupKeyboardCache.CacheKey cacheKey = new PopupKeyboardCache.CacheKey(
+                            null, popupResId, false, keyboard.mDefaultHeight, 0, displayWidth,
+                            uiMode);
+                    Keyboard kbd = cache.get(cacheKey);
+                    if (kbd == null) {
+                        kbd = new Keyboard(context, keyboard.mDefaultHeight, popupResId);
+                        cache.put(cacheKey, kbd);
+                    }
+                    return kbd;
                 } else {
                     if (modifier) return null; // Space, Return etc.
                 }
@@ -634,7 +839,15 @@ public class Keyboard {
             if (popup.length() > 0) {
                 int resId = popupResId;
                 if (resId == 0) resId = R.xml.kbd_popup_template;
-                return new Keyboard(context, keyboard.mDefaultHeight, resId, popup, popupReversed, -1, padding);
+                PopupKeyboardCache.CacheKey cacheKey = new PopupKeyboardCache.CacheKey(
+                        popup, resId, popupReversed, keyboard.mDefaultHeight, padding, displayWidth,
+                        uiMode);
+                Keyboard kbd = cache.get(cacheKey);
+                if (kbd == null) {
+                    kbd = new Keyboard(context, keyboard.mDefaultHeight, resId, popup, popupReversed, -1, padding);
+                    cache.put(cacheKey, kbd);
+                }
+                return kbd;
             } else {
                 return null;
             }
@@ -826,6 +1039,30 @@ public class Keyboard {
      * @param kbHeightPercent height of the keyboard as percentage of screen height
      */
     public Keyboard(Context context, int defaultHeight, int xmlLayoutResId, int modeId, float kbHeightPercent) {
+        loadFromXml(context, defaultHeight, xmlLayoutResId, modeId, kbHeightPercent,
+                LayoutSettings.current());
+    }
+
+    /**
+     * Creates a keyboard from the given xml key layout file, restoring it from the geometry
+     * cache if it was built before in the same configuration. Doesn't read any global state,
+     * so it may run on any thread as long as the context is not used concurrently for
+     * anything that changes its configuration.
+     */
+    Keyboard(Context context, int defaultHeight, int xmlLayoutResId, int modeId, float kbHeightPercent,
+            LayoutSettings settings, KeyboardGeometryCache cache) {
+        mLayoutSettings = settings;
+        String cacheKey = cache.makeKey(context, settings, defaultHeight, xmlLayoutResId, modeId,
+                kbHeightPercent);
+        if (!cache.load(cacheKey, this, context.getResources())) {
+            loadFromXml(context, defaultHeight, xmlLayoutResId, modeId, kbHeightPercent, settings);
+            cache.store(cacheKey, this);
+        }
+    }
+
+    private void loadFromXml(Context context, int defaultHeight, int xmlLayoutResId, int modeId,
+            float kbHeightPercent, LayoutSettings settings) {
+        mLayoutSettings = settings;
         DisplayMetrics dm = context.getResources().getDisplayMetrics();
         mDisplayWidth = dm.widthPixels;
         mDisplayHeight = dm.heightPixels;
@@ -837,13 +1074,14 @@ public class Keyboard {
         mDefaultHeight = defaultHeight; // may be zero, to be adjusted below
         mKeyboardHeight = Math.round(mDisplayHeight * kbHeightPercent / 100); 
         //Log.i("PCKeyboard", "mDefaultHeight=" + mDefaultHeight + "(arg=" + defaultHeight + ")" + " kbHeight=" + mKeyboardHeight + " displayHeight="+mDisplayHeight+")");
-        mKeys = new ArrayList<Key>();
-        mModifierKeys = new ArrayList<Key>();
+        clearKeys();
+        mTotalWidth = 0;
+        mExtensionRowCount = 0;
         mKeyboardMode = modeId;
-        mUseExtension = LatinIME.sKeyboardSettings.useExtension;
+        mUseExtension = settings.useExtension;
         loadKeyboard(context, context.getResources().getXml(xmlLayoutResId));
         setEdgeFlags();
-        fixAltChars(LatinIME.sKeyboardSettings.inputLocale);
+        fixAltChars(settings.inputLocale);
     }
 
     /**
@@ -862,7 +1100,13 @@ public class Keyboard {
      */
     private Keyboard(Context context, int defaultHeight, int layoutTemplateResId,
             CharSequence characters, boolean reversed, int columns, int horizontalPadding) {
-        this(context, defaultHeight, layoutTemplateResId);
+        Keyboard template = getPopupTemplate(context, defaultHeight, layoutTemplateResId);
+        if (template != null) {
+            copyTemplate(template);
+        } else {
+            loadFromXml(context, defaultHeight, layoutTemplateResId, 0, 0,
+                    LayoutSettings.current());
+        }
         int x = 0;
         int y = 0;
         int column = 0;
@@ -891,6 +1135,7 @@ public class Keyboard {
             key.x = x;
             key.realX = x;
             key.y = y;
+            key.realY = y;
             key.label = String.valueOf(c);
             key.codes = key.getFromString(key.label);
             column++;
@@ -905,6 +1150,184 @@ public class Keyboard {
         setEdgeFlags();
     }
 
+    /**
+     * Returns the parsed keyboard for a popup layout template, parsing it on first use, or
+     * null if the template defines keys of its own and can't be used as a prototype.
+     */
+    private static Keyboard getPopupTemplate(Context context, int defaultHeight, int templateResId) {
+        TemplateKey key = new TemplateKey(templateResId, defaultHeight,
+                context.getResources().getDisplayMetrics());
+        Keyboard template;
+        synchronized (sPopupTemplates) {
+            template = sPopupTemplates.get(key);
+        }
+        if (template == null) {
+            template = new Keyboard(context, defaultHeight, templateResId);
+            synchronized (sPopupTemplates) {
+                sPopupTemplates.put(key, template);
+            }
+        }
+        return template.mKeys.isEmpty() ? template : null;
+    }
+
+    /**
+     * Copies the layout attributes of a parsed, key-less template keyboard.
+     */
+    private void copyTemplate(Keyboard template) {
+        mLayoutSettings = template.mLayoutSettings;
+        mDisplayWidth = template.mDisplayWidth;
+        mDisplayHeight = template.mDisplayHeight;
+        mKeyboardHeight = template.mKeyboardHeight;
+        mDefaultWidth = template.mDefaultWidth;
+        mDefaultHeight = template.mDefaultHeight;
+        mDefaultHorizontalGap = template.mDefaultHorizontalGap;
+        mDefaultVerticalGap = template.mDefaultVerticalGap;
+        mHorizontalPad = template.mHorizontalPad;
+        mVerticalPad = template.mVerticalPad;
+        mHorizontalPadResId = template.mHorizontalPadResId;
+        mVerticalPadResId = template.mVerticalPadResId;
+        mKeyHeightResId = template.mKeyHeightResId;
+        mVerticalGapResId = template.mVerticalGapResId;
+        mKeyHeightDimen = template.mKeyHeightDimen;
+        mVerticalGapDimen = template.mVerticalGapDimen;
+        mTotalHeight = template.mTotalHeight;
+        mLayoutRows = template.mLayoutRows;
+        mLayoutColumns = template.mLayoutColumns;
+        mRowCount = template.mRowCount;
+        mExtensionRowCount = template.mExtensionRowCount;
+        mProximityThreshold = template.mProximityThreshold;
+        mKeyboardMode = template.mKeyboardMode;
+        mUseExtension = template.mUseExtension;
+        mParseError = template.mParseError;
+        mKeys = new ArrayList<Key>();
+        mModifierKeys = new ArrayList<Key>();
+    }
+
+    /**
+     * Writes the resolved layout of this keyboard, including the proximity grid, for the
+     * geometry cache. Returns false if it can't be cached.
+     */
+    /* package */ boolean writeGeometry(DataOutputStream out) throws IOException {
+        if (mParseError) return false;
+        if (mGridNeighbors == null) computeNearestNeighbors();
+        out.writeInt(mDisplayWidth);
+        out.writeInt(mDisplayHeight);
+        out.writeInt(mKeyboardHeight);
+        out.writeFloat(mDefaultWidth);
+        out.writeInt(mDefaultHeight);
+        out.writeFloat(mDefaultHorizontalGap);
+        out.writeInt(mDefaultVerticalGap);
+        out.writeFloat(mHorizontalPad);
+        out.writeFloat(mVerticalPad);
+        out.writeInt(mHorizontalPadResId);
+        out.writeInt(mVerticalPadResId);
+        out.writeInt(mKeyHeightResId);
+        out.writeInt(mVerticalGapResId);
+        out.writeFloat(mKeyHeightDimen);
+        out.writeFloat(mVerticalGapDimen);
+        out.writeInt(mTotalWidth);
+        out.writeInt(mTotalHeight);
+        out.writeInt(mKeyboardMode);
+        out.writeBoolean(mUseExtension);
+        out.writeInt(mLayoutRows);
+        out.writeInt(mLayoutColumns);
+        out.writeInt(mRowCount);
+        out.writeInt(mExtensionRowCount);
+        out.writeInt(mProximityThreshold);
+        out.writeInt(mKeys.size());
+        for (Key key : mKeys) {
+            if (!key.writeGeometry(out)) return false;
+        }
+        out.writeInt(mCellWidth);
+        out.writeInt(mCellHeight);
+        out.writeInt(mGridNeighbors.length);
+        for (int[] cell : mGridNeighbors) {
+            writeIntArray(out, cell);
+        }
+        return true;
+    }
+
+    /**
+     * Restores a layout written by {@link #writeGeometry}. Keys are created through
+     * {@link #createKeyFromCache} so that subclasses see the same keys as when loading from XML.
+     */
+    /* package */ void readGeometry(DataInputStream in, Resources res) throws IOException {
+        mDisplayWidth = in.readInt();
+        mDisplayHeight = in.readInt();
+        mKeyboardHeight = in.readInt();
+        mDefaultWidth = in.readFloat();
+        mDefaultHeight = in.readInt();
+        mDefaultHorizontalGap = in.readFloat();
+        mDefaultVerticalGap = in.readInt();
+        mHorizontalPad = in.readFloat();
+        mVerticalPad = in.readFloat();
+        mHorizontalPadResId = in.readInt();
+        mVerticalPadResId = in.readInt();
+        mKeyHeightResId = in.readInt();
+        mVerticalGapResId = in.readInt();
+        mKeyHeightDimen = in.readFloat();
+        mVerticalGapDimen = in.readFloat();
+        mTotalWidth = in.readInt();
+        mTotalHeight = in.readInt();
+        mKeyboardMode = in.readInt();
+        mUseExtension = in.readBoolean();
+        mLayoutRows = in.readInt();
+        mLayoutColumns = in.readInt();
+        mRowCount = in.readInt();
+        mExtensionRowCount = in.readInt();
+        mProximityThreshold = in.readInt();
+        final int keyCount = in.readInt();
+        clearKeys();
+        Row row = new Row(this);
+        row.defaultHeight = mDefaultHeight;
+        row.defaultWidth = mDefaultWidth;
+        row.defaultHorizontalGap = mDefaultHorizontalGap;
+        row.verticalGap = mDefaultVerticalGap;
+        for (int i = 0; i < keyCount; ++i) {
+            addKey(createKeyFromCache(res, row, in));
+        }
+        mCellWidth = in.readInt();
+        mCellHeight = in.readInt();
+        int[][] grid = new int[in.readInt()][];
+        for (int i = 0; i < grid.length; ++i) {
+            grid[i] = readIntArray(in);
+        }
+        mGridNeighbors = grid;
+    }
+
+    private static void writeIntArray(DataOutputStream out, int[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readIntArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        int[] values = new int[length];
+        for (int i = 0; i < length; ++i) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    /** Writes a nullable plain string, returns false for styled text. */
+    private static boolean writeText(DataOutputStream out, CharSequence text) throws IOException {
+        if (text != null && !(text instanceof String)) return false;
+        out.writeBoolean(text != null);
+        if (text != null) out.writeUTF((String) text);
+        return true;
+    }
+
+    private static CharSequence readText(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
     private void setEdgeFlags() {
         if (mRowCount == 0) mRowCount = 1; // Assume one row if not set
         int row = 0;
@@ -1159,6 +1582,44 @@ public class Keyboard {
         return new Key(res, parent, x, y, parser);
     }
 
+    /** Creates a key restored from the geometry cache. */
+    protected Key createKeyFromCache(Resources res, Row parent, DataInputStream in)
+            throws IOException {
+        Key key = new Key(parent);
+        key.readGeometry(in, res);
+        return key;
+    }
+
+    private void clearKeys() {
+        mKeys = new ArrayList<Key>();
+        mModifierKeys = new ArrayList<Key>();
+        mShiftKey = null;
+        mShiftKeyIndex = -1;
+        mCtrlKey = null;
+        mAltKey = null;
+        mMetaKey = null;
+        mGridNeighbors = null;
+    }
+
+    private void addKey(Key key) {
+        mKeys.add(key);
+        if (key.codes[0] == KEYCODE_SHIFT) {
+            if (mShiftKeyIndex == -1) {
+                mShiftKey = key;
+                mShiftKeyIndex = mKeys.size()-1;
+            }
+            mModifierKeys.add(key);
+        } else if (key.codes[0] == KEYCODE_ALT_SYM) {
+            mModifierKeys.add(key);
+        } else if (key.codes[0] == LatinKeyboardView.KEYCODE_CTRL_LEFT) {
+            mCtrlKey = key;
+        } else if (key.codes[0] == LatinKeyboardView.KEYCODE_ALT_LEFT) {
+            mAltKey = key;
+        } else if (key.codes[0] == LatinKeyboardView.KEYCODE_META_LEFT) {
+            mMetaKey = key;
+        }
+    }
+
     private void loadKeyboard(Context context, XmlResourceParser parser) {
         boolean inKey = false;
         boolean inRow = false;
@@ -1200,25 +1661,11 @@ public class Keyboard {
                           // skip this key, adding its width to the previous one
                           if (prevKey != null) {
                               prevKey.width += key.width;
+                              prevKey.realWidth += key.realWidth;
                           }
                         } else {
-                          mKeys.add(key);
+                          addKey(key);
                           prevKey = key;
-                          if (key.codes[0] == KEYCODE_SHIFT) {
-                              if (mShiftKeyIndex == -1) {
-                                  mShiftKey = key;
-                                  mShiftKeyIndex = mKeys.size()-1;
-                              }
-                              mModifierKeys.add(key);
-                          } else if (key.codes[0] == KEYCODE_ALT_SYM) {
-                              mModifierKeys.add(key);
-                          } else if (key.codes[0] == LatinKeyboardView.KEYCODE_CTRL_LEFT) {
-                              mCtrlKey = key;
-                          } else if (key.codes[0] == LatinKeyboardView.KEYCODE_ALT_LEFT) {
-                              mAltKey = key;
-                          } else if (key.codes[0] == LatinKeyboardView.KEYCODE_META_LEFT) {
-                              mMetaKey = key;
-                          }
                         }
                     } else if (TAG_KEYBOARD.equals(tag)) {
                         parseKeyboardAttributes(res, parser);
@@ -1241,6 +1688,7 @@ public class Keyboard {
                 }
             }
         } catch (Exception e) {
+            mParseError = true;
             Log.e(TAG, "Parse error:" + e);
             e.printStackTrace();
         }
@@ -1259,6 +1707,85 @@ public class Keyboard {
         mTotalWidth = newWidth;
     }
 
+    /**
+     * Returns true if a dimension resource the layout was built with now resolves to a
+     * different value, so {@link #rescale} can't reproduce a freshly built keyboard.
+     */
+    public boolean dimensionsChanged(Resources res) {
+        return (mKeyHeightResId != 0 && res.getDimension(mKeyHeightResId) != mKeyHeightDimen)
+                || (mVerticalGapResId != 0
+                        && res.getDimension(mVerticalGapResId) != mVerticalGapDimen);
+    }
+
+    /**
+     * Rescales the keyboard in place to the current display metrics and the given keyboard
+     * height, as if it had been built for them, without parsing the layout again. Key
+     * positions, sizes and gaps scale with the display width, rows with the keyboard height,
+     * and paddings are re-read from their dimension resources. Check
+     * {@link #dimensionsChanged} first, other dimension resources are not re-read.
+     * @return true if the geometry changed
+     */
+    public boolean rescale(Resources res, float kbHeightPercent) {
+        final DisplayMetrics dm = res.getDisplayMetrics();
+        final int keyboardHeight = Math.round(dm.heightPixels * kbHeightPercent / 100);
+        final float hPad = mHorizontalPadResId != 0
+                ? res.getDimension(mHorizontalPadResId) : mHorizontalPad;
+        final float vPad = mVerticalPadResId != 0
+                ? res.getDimension(mVerticalPadResId) : mVerticalPad;
+        if (dm.widthPixels == mDisplayWidth && dm.heightPixels == mDisplayHeight
+                && keyboardHeight == mKeyboardHeight
+                && hPad == mHorizontalPad && vPad == mVerticalPad) {
+            return false;
+        }
+        Log.i(TAG, "Rescaling keyboard: " + mDisplayWidth + "x" + mDisplayHeight + " => "
+                + dm.widthPixels + "x" + dm.heightPixels + ", height " + mKeyboardHeight
+                + " => " + keyboardHeight);
+        final float sx = (float) dm.widthPixels / mDisplayWidth;
+        // Layouts without a configured height use fixed row heights.
+        final float sy = mKeyboardHeight > 0 && keyboardHeight > 0
+                ? (float) keyboardHeight / mKeyboardHeight : 1.0f;
+        final float oldHPad = mHorizontalPad;
+        final float oldVPad = mVerticalPad;
+        if (mRealDefaultHeight < 0) {
+            mRealDefaultHeight = mDefaultHeight;
+            mRealDefaultVerticalGap = mDefaultVerticalGap;
+            mRealTotalHeight = mTotalHeight;
+        }
+        int totalWidth = 0;
+        for (Key key : mKeys) {
+            // The paddings are taken out of the key size, scale the unpadded cell.
+            key.realX = (key.realX - oldHPad / 2) * sx + hPad / 2;
+            key.realWidth = (key.realWidth + oldHPad) * sx - hPad;
+            key.realGap = (key.realGap - oldHPad) * sx + hPad;
+            key.x = Math.round(key.realX);
+            key.width = Math.round(key.realWidth);
+            key.gap = Math.round(key.realGap);
+            key.realY = (key.realY - oldVPad / 2) * sy + vPad / 2;
+            key.realHeight = (key.realHeight + oldVPad) * sy - vPad;
+            key.y = Math.round(key.realY);
+            key.height = Math.round(key.realHeight);
+            totalWidth = Math.max(totalWidth, Math.round(key.realX + hPad / 2 + key.realWidth));
+        }
+        mDefaultWidth *= sx;
+        mDefaultHorizontalGap *= sx;
+        mRealDefaultHeight *= sy;
+        mRealDefaultVerticalGap *= sy;
+        mRealTotalHeight *= sy;
+        mDefaultHeight = Math.round(mRealDefaultHeight);
+        mDefaultVerticalGap = Math.round(mRealDefaultVerticalGap);
+        mHorizontalPad = hPad;
+        mVerticalPad = vPad;
+        mTotalWidth = totalWidth;
+        mTotalHeight = Math.round(mRealTotalHeight);
+        mDisplayWidth = dm.widthPixels;
+        mDisplayHeight = dm.heightPixels;
+        mKeyboardHeight = keyboardHeight;
+        mProximityThreshold = (int) (mDefaultWidth * SEARCH_DISTANCE);
+        mProximityThreshold = mProximityThreshold * mProximityThreshold;
+        mGridNeighbors = null;
+        return true;
+    }
+
     private void skipToEndOfRow(XmlResourceParser parser)
             throws XmlPullParserException, IOException {
         int event;
@@ -1289,9 +1816,17 @@ public class Keyboard {
         mHorizontalPad = getDimensionOrFraction(a,
                 R.styleable.Keyboard_horizontalPad,
                 mDisplayWidth, res.getDimension(R.dimen.key_horizontal_pad));
+        mHorizontalPadResId = getDimensionResourceId(a,
+                R.styleable.Keyboard_horizontalPad, R.dimen.key_horizontal_pad);
         mVerticalPad = getDimensionOrFraction(a,
                 R.styleable.Keyboard_verticalPad,
                 mDisplayHeight, res.getDimension(R.dimen.key_vertical_pad));
+        mVerticalPadResId = getDimensionResourceId(a,
+                R.styleable.Keyboard_verticalPad, R.dimen.key_vertical_pad);
+        mKeyHeightResId = getDimensionResourceId(a, R.styleable.Keyboard_keyHeight, 0);
+        mKeyHeightDimen = mKeyHeightResId != 0 ? res.getDimension(mKeyHeightResId) : 0;
+        mVerticalGapResId = getDimensionResourceId(a, R.styleable.Keyboard_verticalGap, 0);
+        mVerticalGapDimen = mVerticalGapResId != 0 ? res.getDimension(mVerticalGapResId) : 0;
         mLayoutRows = a.getInteger(R.styleable.Keyboard_layoutRows, DEFAULT_LAYOUT_ROWS);
         mLayoutColumns = a.getInteger(R.styleable.Keyboard_layoutColumns, DEFAULT_LAYOUT_COLUMNS);
         if (mDefaultHeight == 0 && mKeyboardHeight > 0 && mLayoutRows > 0) {
@@ -1303,6 +1838,12 @@ public class Keyboard {
         a.recycle();
     }
 
+    private static int getDimensionResourceId(TypedArray a, int index, int defResId) {
+        TypedValue value = a.peekValue(index);
+        if (value == null) return defResId;
+        return value.type == TypedValue.TYPE_DIMENSION ? value.resourceId : 0;
+    }
+
     static float getDimensionOrFraction(TypedArray a, int index, int base, float defValue) {
         TypedValue value = a.peekValue(index);
         if (value == null) return defValue;
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of fully resolved keyboard layouts. A cached keyboard is restored with one
+ * bulk read instead of parsing and resolving its XML layout, which matters on a cold start
+ * after the IME process was killed in the background.
+ *
+ * <p>Entries are keyed by everything that affects the parsed result: layout, mode, height,
+ * display metrics, resource configuration, input locale, the layout related preferences and
+ * the installed app version (resource ids are only stable within one build).
+ */
+class KeyboardGeometryCache {
+    private static final String TAG = "PCKeyboardGeomCache";
+
+    private static final int MAGIC = 0x504b4b47; // "PKKG"
+    private static final int FORMAT_VERSION = 4;
+    private static final String DIR_NAME = "keyboards";
+    private static final String FILE_SUFFIX = ".kbd";
+    private static final int MAX_FILES = 48;
+
+    private static KeyboardGeometryCache sInstance;
+
+    private final File mDir;
+    private final String mAppVersion;
+    // Writes and housekeeping happen off the UI thread, in order.
+    private final Executor mWriter = Executors.newSingleThreadExecutor();
+    private int mHits;
+    private int mMisses;
+    private int mWrites;
+
+    private KeyboardGeometryCache(Context context) {
+        mDir = new File(context.getCacheDir(), DIR_NAME);
+        String version;
+        try {
+            version = Long.toString(context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            version = "0";
+        }
+        mAppVersion = version;
+    }
+
+    public static synchronized KeyboardGeometryCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KeyboardGeometryCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the cache key for a keyboard built with the given arguments in the current
+     * resource configuration.
+     */
+    public String makeKey(Context context, Keyboard.LayoutSettings settings, int defaultHeight,
+            int xmlLayoutResId, int modeId, float kbHeightPercent) {
+        final Resources res = context.getResources();
+        final DisplayMetrics dm = res.getDisplayMetrics();
+        final Configuration conf = res.getConfiguration();
+        return xmlLayoutResId + "/" + modeId + "/" + defaultHeight + "/" + kbHeightPercent
+                + "/" + dm.widthPixels + "x" + dm.heightPixels + "@" + dm.densityDpi
+                + "/" + conf.locale + "/" + conf.orientation + "/" + conf.uiMode
+                + "/" + conf.screenLayout
+                + "/" + settings.inputLocale + "/" + settings.useExtension
+                + "/" + settings.popupKeyboardFlags + "/" + settings.topRowScale
+                + "/" + mAppVersion;
+    }
+
+    /**
+     * Restores a keyboard from the cache.
+     * @return true on success, false if the keyboard must be loaded from XML
+     */
+    public boolean load(String key, Keyboard kbd, Resources res) {
+        final File file = fileFor(key);
+        byte[] data = null;
+        if (file.exists()) {
+            try {
+                data = readFully(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read " + file + ": " + e);
+            }
+        }
+        DataInputStream in = data == null ? null : openPayload(data, key);
+        if (in == null) {
+            synchronized (this) {
+                ++mMisses;
+            }
+            return false;
+        }
+        try {
+            kbd.readGeometry(in, res);
+        } catch (Exception e) {
+            // The checksum matched, so this is a format bug or a missing resource. The caller
+            // reloads the keyboard from XML, which resets everything read so far.
+            Log.e(TAG, "Failed to restore " + file + ": " + e);
+            file.delete();
+            synchronized (this) {
+                ++mMisses;
+            }
+            return false;
+        }
+        synchronized (this) {
+            ++mHits;
+        }
+        mWriter.execute(new Runnable() {
+            public void run() {
+                file.setLastModified(System.currentTimeMillis());
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Serializes a freshly built keyboard and schedules writing it to disk. Must be called
+     * before the keyboard is modified for a specific editor.
+     */
+    public void store(String key, Keyboard kbd) {
+        final byte[] data;
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(8192);
+            if (!kbd.writeGeometry(new DataOutputStream(payload))) return;
+            byte[] payloadBytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payloadBytes);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(payloadBytes.length + 256);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(payloadBytes.length);
+            out.writeLong(crc.getValue());
+            out.write(payloadBytes);
+            out.flush();
+            data = buf.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serialize keyboard: " + e);
+            return;
+        }
+        final File file = fileFor(key);
+        mWriter.execute(new Runnable() {
+            public void run() {
+                write(file, data);
+            }
+        });
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "(hits=" + mHits + " misses=" + mMisses + " writes=" + mWrites + ")";
+    }
+
+    private File fileFor(String key) {
+        return new File(mDir, Integer.toHexString(key.hashCode()) + FILE_SUFFIX);
+    }
+
+    /**
+     * Validates the header and checksum, returning a stream positioned at the payload, or
+     * null if the data doesn't hold the given key.
+     */
+    private static DataInputStream openPayload(byte[] data, String key) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return null;
+            // Different keys may share a file name, the full key is stored in the header.
+            if (!key.equals(in.readUTF())) return null;
+            int length = in.readInt();
+            long checksum = in.readLong();
+            int offset = data.length - in.available();
+            if (length != data.length - offset) return null;
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            if (crc.getValue() != checksum) return null;
+            return in;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) f.length()];
+            f.readFully(data);
+            return data;
+        } finally {
+            f.close();
+        }
+    }
+
+    private void write(File file, byte[] data) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) return;
+        // Write to a temporary file and rename it, so readers never see a partial file.
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + file + ": " + e);
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            ++mWrites;
+        }
+        trimFiles();
+    }
+
+    private void trimFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_FILES) return;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_FILES; ++i) {
+            files[i].delete();
+        }
+    }
+}
@@ -16,10 +16,13 @@
 
 package org.pocketworkstation.pckeyboard;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import androidx.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.ContextThemeWrapper;
 import android.view.InflateException;
@@ -30,9 +33,19 @@ import android.view.ViewParent;
 
 import org.pocketworkstation.pckeyboard.material.settings.SettingsDefinitions;
 
-import java.lang.ref.SoftReference;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.Locale;
 
 public class KeyboardSwitcher implements
@@ -129,7 +142,55 @@ public class KeyboardSwitcher implements
     private KeyboardId mSymbolsShiftedId;
 
     private KeyboardId mCurrentId;
-    private final HashMap<KeyboardId, SoftReference<LatinKeyboard>> mKeyboards = new HashMap<KeyboardId, SoftReference<LatinKeyboard>>();
+    // Built keyboards in access order, least recently used first, bounded by an estimate of
+    // their retained size. The current keyboard is never evicted.
+    private final LinkedHashMap<KeyboardId, LatinKeyboard> mKeyboards =
+            new LinkedHashMap<KeyboardId, LatinKeyboard>(16, 0.75f, true);
+    private static final int MAX_KEYBOARD_BYTES = 768 * 1024;
+    // Rough retained size of a LatinKeyboard (icons, proximity grid) and of each of its keys.
+    private static final int KEYBOARD_BYTES = 16 * 1024;
+    private static final int KEY_BYTES = 384;
+    private int mKeyboardBytes;
+    private int mKeyboardBudget = MAX_KEYBOARD_BYTES;
+
+    // Contexts whose resources resolve in an input locale, used to build keyboards without
+    // changing the locale of the shared service resources. They are dropped when the
+    // service configuration changes.
+    private final HashMap<Locale, Context> mLocaleContexts = new HashMap<Locale, Context>();
+    private Configuration mLocaleContextsConfig;
+
+    // Keyboards that are likely to be needed soon are built on a small pool of worker
+    // threads. The UI thread only waits for a pending build when it has to show that
+    // keyboard. Finished builds move into mKeyboards on the UI thread. Prebuilding is
+    // suspended for a while after the system asked us to trim memory.
+    private static final int BUILD_THREADS =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long PREBUILD_TRIM_BACKOFF = 60 * 1000;
+    private final ThreadPoolExecutor mBuildExecutor = new ThreadPoolExecutor(
+            BUILD_THREADS, BUILD_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int mCount;
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "KeyboardBuilder-" + ++mCount);
+                }
+            });
+    private final HashMap<KeyboardId, Future<LatinKeyboard>> mPendingKeyboards =
+            new HashMap<KeyboardId, Future<LatinKeyboard>>();
+    private long mLastTrimTime = -PREBUILD_TRIM_BACKOFF;
+
+    // The next input view. Its theme resources and font are loaded on a build thread so that
+    // theme and settings changes don't stall the UI thread, the view itself (popup windows,
+    // handlers) is then constructed on the UI thread. mPreparedToken identifies the latest
+    // request, results of older ones are dropped. If mSwapWhenPrepared is set the view
+    // replaces mInputView as soon as it is ready, otherwise it waits for a switch to
+    // mPreparedLayoutId. Views are only used with the configuration they were inflated for
+    // (orientation, night mode).
+    private int mPreparedLayoutId = -1;
+    private Object mPreparedToken;
+    private LatinKeyboardView mPreparedView;
+    private Configuration mPreparedConfig;
+    private boolean mSwapWhenPrepared;
 
     private int mMode = MODE_NONE;
     /** One of the MODE_XXX values */
@@ -175,7 +236,7 @@ public class KeyboardSwitcher implements
     }
 
     private KeyboardSwitcher() {
-        // Intentional empty constructor for singleton.
+        mBuildExecutor.allowCoreThreadTimeOut(true);
     }
 
     public static void init(LatinIME ims) {
@@ -227,7 +288,7 @@ public class KeyboardSwitcher implements
         mSymbolsShiftedId = makeSymbolsShiftedId(false);
 
         if (forceCreate)
-            mKeyboards.clear();
+            clearKeyboards();
         // Configuration change is coming after the keyboard gets recreated. So
         // don't rely on that.
         // If keyboards have already been made, check if we have a screen width
@@ -237,8 +298,175 @@ public class KeyboardSwitcher implements
         if (displayWidth == mLastDisplayWidth)
             return;
         mLastDisplayWidth = displayWidth;
-        if (!forceCreate)
-            mKeyboards.clear();
+        // Cached and pending keyboards are rescaled in place when they are next used, see
+        // getKeyboard().
+    }
+
+    /**
+     * Starts building the keyboards needed first (letters, symbols and phone) in parallel,
+     * so that showing the first input view only waits for one of them. Must be called once
+     * the keyboard settings are loaded.
+     */
+    public void startInitialBuilds() {
+        mFullMode = LatinIME.sKeyboardSettings.keyboardMode;
+        mSymbolsId = makeSymbolsId(false);
+        mSymbolsShiftedId = makeSymbolsShiftedId(false);
+        startBuild(getKeyboardId(MODE_TEXT, 0, false));
+        startBuild(mSymbolsId);
+        startBuild(getKeyboardId(MODE_PHONE, 0, false));
+    }
+
+    private void clearKeyboards() {
+        mKeyboards.clear();
+        mKeyboardBytes = 0;
+        cancelBuilds();
+    }
+
+    /**
+     * Builds a keyboard on a worker thread, unless it's already built or pending. The
+     * locale context and settings are captured here, on the UI thread.
+     */
+    private void startBuild(final KeyboardId id) {
+        if (id == null || mKeyboards.containsKey(id) || mPendingKeyboards.containsKey(id)) {
+            return;
+        }
+        final Context context = getLocaleContext(LatinIME.sKeyboardSettings.inputLocale);
+        final Keyboard.LayoutSettings settings = Keyboard.LayoutSettings.current();
+        mPendingKeyboards.put(id, mBuildExecutor.submit(new Callable<LatinKeyboard>() {
+            public LatinKeyboard call() {
+                return buildKeyboard(context, id, settings);
+            }
+        }));
+    }
+
+    private void cancelBuilds() {
+        for (Future<LatinKeyboard> future : mPendingKeyboards.values()) {
+            future.cancel(false);
+        }
+        mPendingKeyboards.clear();
+    }
+
+    /**
+     * Moves finished background builds into the keyboard cache.
+     */
+    private void collectBuilds() {
+        Iterator<Map.Entry<KeyboardId, Future<LatinKeyboard>>> it =
+                mPendingKeyboards.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<KeyboardId, Future<LatinKeyboard>> entry = it.next();
+            if (!entry.getValue().isDone()) continue;
+            it.remove();
+            LatinKeyboard keyboard = getBuildResult(entry.getValue());
+            if (keyboard != null && !mKeyboards.containsKey(entry.getKey())) {
+                putKeyboard(entry.getKey(), keyboard);
+            }
+        }
+    }
+
+    /**
+     * Returns the result of a background build, waiting for it if needed, or null if it
+     * failed or was cancelled.
+     */
+    private static LatinKeyboard getBuildResult(Future<LatinKeyboard> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Background keyboard build failed", e.getCause());
+        } catch (CancellationException e) {
+            // Settings changed while building, the caller builds it again.
+        }
+        return null;
+    }
+
+    private static LatinKeyboard buildKeyboard(Context context, KeyboardId id,
+            Keyboard.LayoutSettings settings) {
+        LatinKeyboard keyboard = new LatinKeyboard(context, id.mXml, id.mKeyboardMode,
+                id.mKeyboardHeightPercent, settings);
+        keyboard.setVoiceMode(false, false);
+//        if (isFullMode()) {
+//            keyboard.setExtension(new LatinKeyboard(mInputMethodService,
+//                    R.xml.kbd_extension_full, 0, id.mRowHeightPercent));
+//        } else if (isAlphabetMode()) { // TODO: not in full keyboard mode? Per-mode extension kbd?
+//            keyboard.setExtension(new LatinKeyboard(mInputMethodService,
+//                    R.xml.kbd_extension, 0, id.mRowHeightPercent));
+//        }
+
+        if (id.mEnableShiftLock) {
+            keyboard.enableShiftLock();
+        }
+        return keyboard;
+    }
+
+    private void putKeyboard(KeyboardId id, LatinKeyboard keyboard) {
+        // Make room first so that the new keyboard itself is never evicted.
+        final int bytes = estimateBytes(keyboard);
+        trimKeyboards(mKeyboardBudget - bytes);
+        mKeyboards.put(id, keyboard);
+        mKeyboardBytes += bytes;
+    }
+
+    /**
+     * Drops least recently used keyboards other than the current one until the estimated
+     * size is at most maxBytes.
+     */
+    private void trimKeyboards(int maxBytes) {
+        Iterator<Map.Entry<KeyboardId, LatinKeyboard>> it = mKeyboards.entrySet().iterator();
+        while (mKeyboardBytes > maxBytes && it.hasNext()) {
+            Map.Entry<KeyboardId, LatinKeyboard> entry = it.next();
+            if (entry.getKey().equals(mCurrentId)) continue;
+            mKeyboardBytes -= estimateBytes(entry.getValue());
+            it.remove();
+        }
+    }
+
+    private static int estimateBytes(LatinKeyboard kbd) {
+        return KEYBOARD_BYTES + kbd.getKeys().size() * KEY_BYTES;
+    }
+
+    /**
+     * Shrinks the keyboard and popup caches according to a {@link ComponentCallbacks2}
+     * trim level.
+     */
+    public void onTrimMemory(int level) {
+        int divisor;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            divisor = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            divisor = 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            divisor = 2;
+        } else {
+            return;
+        }
+        Log.i(TAG, "onTrimMemory level=" + level + " keyboards=" + mKeyboards.size()
+                + " bytes=" + mKeyboardBytes);
+        mLastTrimTime = SystemClock.uptimeMillis();
+        cancelBuilds();
+        if (!mSwapWhenPrepared) discardPreparedView();
+        mKeyboardBudget = divisor == 0 ? 0 : MAX_KEYBOARD_BYTES / divisor;
+        trimKeyboards(mKeyboardBudget);
+        PopupKeyboardCache popups = PopupKeyboardCache.getInstance();
+        if (divisor == 0) {
+            popups.clear();
+        } else {
+            popups.trimToSize(PopupKeyboardCache.MAX_BYTES / divisor);
+        }
+    }
+
+    /**
+     * Starts background builds of the keyboards reachable with one key press from the
+     * current one: symbols, shifted symbols or Fn, and back to letters.
+     */
+    private void schedulePrebuild() {
+        collectBuilds();
+        if (mCurrentId == null) return;
+        if (SystemClock.uptimeMillis() - mLastTrimTime < PREBUILD_TRIM_BACKOFF) return;
+        mKeyboardBudget = MAX_KEYBOARD_BYTES;
+        startBuild(getKeyboardId(mMode, mImeOptions, !mIsSymbols));
+        startBuild(mSymbolsId);
+        startBuild(mSymbolsShiftedId);
     }
 
     /**
@@ -335,39 +563,53 @@ public class KeyboardSwitcher implements
         keyboard.setImeOptions(mInputMethodService.getResources(), mMode,
                 imeOptions);
         keyboard.updateSymbolIcons(mIsAutoCompletionActive);
+        schedulePrebuild();
     }
 
     private LatinKeyboard getKeyboard(KeyboardId id) {
-        SoftReference<LatinKeyboard> ref = mKeyboards.get(id);
-        LatinKeyboard keyboard = (ref == null) ? null : ref.get();
+        final Resources res = mInputMethodService.getResources();
+        LatinKeyboard keyboard = mKeyboards.get(id);
+        if (keyboard != null && keyboard.dimensionsChanged(res)) {
+            // Built for other resources (e.g. the other orientation), rescaling isn't enough.
+            mKeyboards.remove(id);
+            mKeyboardBytes -= estimateBytes(keyboard);
+            keyboard = null;
+        }
         if (keyboard == null) {
-            Resources orig = mInputMethodService.getResources();
-            Configuration conf = orig.getConfiguration();
-            Locale saveLocale = conf.locale;
-            conf.locale = LatinIME.sKeyboardSettings.inputLocale;
-            orig.updateConfiguration(conf, null);
-            keyboard = new LatinKeyboard(mInputMethodService, id.mXml,
-                    id.mKeyboardMode, id.mKeyboardHeightPercent);
-            keyboard.setVoiceMode(false, false);
-//            if (isFullMode()) {
-//                keyboard.setExtension(new LatinKeyboard(mInputMethodService,
-//                        R.xml.kbd_extension_full, 0, id.mRowHeightPercent));
-//            } else if (isAlphabetMode()) { // TODO: not in full keyboard mode? Per-mode extension kbd?
-//                keyboard.setExtension(new LatinKeyboard(mInputMethodService,
-//                        R.xml.kbd_extension, 0, id.mRowHeightPercent));
-//            }
-
-            if (id.mEnableShiftLock) {
-                keyboard.enableShiftLock();
+            Future<LatinKeyboard> pending = mPendingKeyboards.remove(id);
+            if (pending != null) keyboard = getBuildResult(pending);
+            if (keyboard != null && keyboard.dimensionsChanged(res)) keyboard = null;
+            if (keyboard == null) {
+                keyboard = buildKeyboard(getLocaleContext(LatinIME.sKeyboardSettings.inputLocale),
+                        id, Keyboard.LayoutSettings.current());
             }
-            mKeyboards.put(id, new SoftReference<LatinKeyboard>(keyboard));
-
-            conf.locale = saveLocale;
-            orig.updateConfiguration(conf, null);
+            putKeyboard(id, keyboard);
         }
+        // Keyboards built earlier may be for a different size.
+        keyboard.rescale(res, id.mKeyboardHeightPercent);
         return keyboard;
     }
 
+    /**
+     * Returns a context for building keyboards whose resources resolve in the given locale.
+     */
+    private synchronized Context getLocaleContext(Locale locale) {
+        final Configuration base = mInputMethodService.getResources().getConfiguration();
+        if (mLocaleContextsConfig == null || mLocaleContextsConfig.diff(base) != 0) {
+            mLocaleContexts.clear();
+            mLocaleContextsConfig = new Configuration(base);
+        }
+        if (locale == null) return mInputMethodService;
+        Context context = mLocaleContexts.get(locale);
+        if (context == null) {
+            Configuration conf = new Configuration(base);
+            conf.setLocale(locale);
+            context = mInputMethodService.createConfigurationContext(conf);
+            mLocaleContexts.put(locale, context);
+        }
+        return context;
+    }
+
     public boolean isFullMode() {
         return mFullMode > 0;
     }
@@ -626,52 +868,213 @@ public class KeyboardSwitcher implements
         changeLatinKeyboardView(mLayoutId, true);
     }
 
+    /**
+     * Recreates the input view without blocking the UI thread on resource loading. The
+     * current view stays in use until the new one is ready.
+     */
+    public void recreateInputViewAsync() {
+        changeLatinKeyboardViewAsync(mLayoutId);
+    }
+
+    /**
+     * Starts preparing the input view for the given layout, e.g. while the user is browsing
+     * themes. Switching to that layout later uses the prepared view.
+     */
+    public void prepareInputView(int layoutId) {
+        if (mInputMethodService == null) return;
+        prepareInputView(layoutId, false);
+    }
+
+    private void prepareInputView(int layoutId, boolean swap) {
+        if (THEMES.length <= layoutId) {
+            layoutId = Integer.valueOf(DEFAULT_LAYOUT_ID);
+        }
+        if (mPreparedToken == null || mPreparedLayoutId != layoutId
+                || !isPreparedForCurrentConfig()) {
+            discardPreparedView();
+            final Context context = mInputMethodService;
+            final int layout = layoutId;
+            final Object token = new Object();
+            mPreparedLayoutId = layout;
+            mPreparedToken = token;
+            mPreparedConfig = new Configuration(context.getResources().getConfiguration());
+            mBuildExecutor.execute(new Runnable() {
+                public void run() {
+                    preloadInputView(context, layout);
+                    mInputMethodService.mHandler.post(new Runnable() {
+                        public void run() {
+                            onInputViewPrepared(token);
+                        }
+                    });
+                }
+            });
+        }
+        mSwapWhenPrepared |= swap;
+        if (mPreparedView != null) {
+            onInputViewPrepared(mPreparedToken);
+        }
+    }
+
+    /**
+     * Called on the UI thread once the resources for the prepared view are loaded.
+     */
+    private void onInputViewPrepared(Object token) {
+        if (token != mPreparedToken) return; // discarded or superseded
+        final int layout = mPreparedLayoutId;
+        if (!isPreparedForCurrentConfig()) {
+            // Loaded for the previous configuration, start over.
+            final boolean swap = mSwapWhenPrepared;
+            discardPreparedView();
+            prepareInputView(layout, swap);
+            return;
+        }
+        if (mPreparedView == null) {
+            mPreparedView = inflateInputView(mInputMethodService, layout);
+            if (mPreparedView == null) {
+                discardPreparedView();
+                return;
+            }
+        }
+        if (!mSwapWhenPrepared) return;
+        final LatinKeyboardView view = mPreparedView;
+        discardPreparedView();
+        installInputView(view, layout);
+        // Carry the current keyboard over to the new view.
+        if (mMode != MODE_NONE) {
+            setKeyboardMode(mMode, mImeOptions, mIsSymbols);
+            mInputMethodService.updateShiftKeyState(
+                    mInputMethodService.getCurrentInputEditorInfo());
+        }
+        postSetInputView();
+    }
+
+    private void discardPreparedView() {
+        mPreparedToken = null;
+        mPreparedView = null;
+        mPreparedConfig = null;
+        mPreparedLayoutId = -1;
+        mSwapWhenPrepared = false;
+    }
+
+    private boolean isPreparedForCurrentConfig() {
+        return mPreparedConfig != null && mPreparedConfig.diff(
+                mInputMethodService.getResources().getConfiguration()) == 0;
+    }
+
+    /**
+     * Drops a prepared input view inflated for the old configuration. A pending swap is
+     * restarted for the new one.
+     */
+    public void onConfigurationChanged() {
+        if (mPreparedToken == null || isPreparedForCurrentConfig()) return;
+        if (mSwapWhenPrepared) {
+            prepareInputView(mPreparedLayoutId, true);
+        } else {
+            discardPreparedView();
+        }
+    }
+
+    private void changeLatinKeyboardViewAsync(int newLayout) {
+        if (mInputView == null) {
+            changeLatinKeyboardView(newLayout, true);
+            return;
+        }
+        // Views prepared before the settings changed can't be used.
+        discardPreparedView();
+        prepareInputView(newLayout, true);
+    }
+
     private void changeLatinKeyboardView(int newLayout, boolean forceReset) {
         if (mLayoutId != newLayout || mInputView == null || forceReset) {
-            if (mInputView != null) {
-                mInputView.closing();
-            }
             if (THEMES.length <= newLayout) {
                 newLayout = Integer.valueOf(DEFAULT_LAYOUT_ID);
             }
-
-            LatinIMEUtil.GCUtils.getInstance().reset();
-            boolean tryGC = true;
-            for (int i = 0; i < LatinIMEUtil.GCUtils.GC_TRY_LOOP_MAX && tryGC; ++i) {
-                try {
-                    ContextThemeWrapper themeContext = new ContextThemeWrapper(mInputMethodService, STYLES[newLayout]);
-                    LayoutInflater inflater = LayoutInflater.from(themeContext);
-                    mInputView = (LatinKeyboardView) inflater.inflate(THEMES[newLayout], null);
-                    tryGC = false;
-                } catch (OutOfMemoryError e) {
-                    tryGC = LatinIMEUtil.GCUtils.getInstance().tryGCOrWait(
-                            mLayoutId + "," + newLayout, e);
-                } catch (InflateException e) {
-                    tryGC = LatinIMEUtil.GCUtils.getInstance().tryGCOrWait(
-                            mLayoutId + "," + newLayout, e);
-                }
+            LatinKeyboardView view = null;
+            if (mPreparedLayoutId == newLayout && isPreparedForCurrentConfig()) {
+                view = mPreparedView;
             }
-            mInputView.setExtensionLayoutResId(THEMES[newLayout]);
-            mInputView.setOnKeyboardActionListener(mInputMethodService);
-
-            // Calculate nav bar height for edge-to-edge padding
-            int navBarHeight = 0;
-            // Only apply this on Oreo+ where we enabled the edge-to-edge flags
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-                 int resourceId = mInputMethodService.getResources().getIdentifier("navigation_bar_height", "dimen", "android");
-                 if (resourceId > 0) {
-                     navBarHeight = mInputMethodService.getResources().getDimensionPixelSize(resourceId);
-                     // User requested 2.7x the system height for optimal clearance
-                     navBarHeight = (int) (navBarHeight * 2.5f);
-                 }
+            discardPreparedView();
+            if (view == null) view = inflateInputView(mInputMethodService, newLayout);
+            if (view != null) installInputView(view, newLayout);
+        }
+        postSetInputView();
+    }
+
+    /**
+     * Loads the theme resources and font the input view for the layout uses, so that
+     * inflating it afterwards mostly hits caches. Safe to call on any thread, unlike
+     * {@link #inflateInputView}.
+     */
+    private static void preloadInputView(Context context, int layout) {
+        try {
+            LatinKeyboardBaseView.preloadResources(
+                    new ContextThemeWrapper(context, STYLES[layout]));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not preload input view resources", e);
+        }
+    }
+
+    /**
+     * Inflates the themed input view, retrying after a GC if memory is short. Must be called
+     * on the UI thread.
+     * @return the new view, or null if inflating failed
+     */
+    private static LatinKeyboardView inflateInputView(Context context, int layout) {
+        LatinKeyboardView view = null;
+        LatinIMEUtil.GCUtils.getInstance().reset();
+        boolean tryGC = true;
+        for (int i = 0; i < LatinIMEUtil.GCUtils.GC_TRY_LOOP_MAX && tryGC; ++i) {
+            try {
+                ContextThemeWrapper themeContext = new ContextThemeWrapper(context, STYLES[layout]);
+                LayoutInflater inflater = LayoutInflater.from(themeContext);
+                view = (LatinKeyboardView) inflater.inflate(THEMES[layout], null);
+                tryGC = false;
+            } catch (OutOfMemoryError e) {
+                tryGC = LatinIMEUtil.GCUtils.getInstance().tryGCOrWait(
+                        String.valueOf(layout), e);
+            } catch (InflateException e) {
+                tryGC = LatinIMEUtil.GCUtils.getInstance().tryGCOrWait(
+                        String.valueOf(layout), e);
             }
-            
-            mInputView.setPadding(0, 0, 0, navBarHeight);
-            mLayoutId = newLayout;
+        }
+        return view;
+    }
 
-            // Update Navigation Bar Color to match the keyboard theme
-            updateNavigationBarColor(newLayout);
+    /**
+     * Replaces the current input view. Must be called on the UI thread.
+     */
+    private void installInputView(LatinKeyboardView view, int newLayout) {
+        if (mInputView != null) {
+            mInputView.closing();
+        }
+        if (newLayout != mLayoutId) {
+            // Cached popups were tinted with the old theme's colors.
+            PopupKeyboardCache.getInstance().clear();
         }
+        mInputView = view;
+        mInputView.setExtensionLayoutResId(THEMES[newLayout]);
+        mInputView.setOnKeyboardActionListener(mInputMethodService);
+
+        // Calculate nav bar height for edge-to-edge padding
+        int navBarHeight = 0;
+        // Only apply this on Oreo+ where we enabled the edge-to-edge flags
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
+             int resourceId = mInputMethodService.getResources().getIdentifier("navigation_bar_height", "dimen", "android");
+             if (resourceId > 0) {
+                 navBarHeight = mInputMethodService.getResources().getDimensionPixelSize(resourceId);
+                 // User requested 2.7x the system height for optimal clearance
+                 navBarHeight = (int) (navBarHeight * 2.5f);
+             }
+        }
+        
+        mInputView.setPadding(0, 0, 0, navBarHeight);
+        mLayoutId = newLayout;
+
+        // Update Navigation Bar Color to match the keyboard theme
+        updateNavigationBarColor(newLayout);
+    }
+
+    private void postSetInputView() {
         mInputMethodService.mHandler.post(new Runnable() {
             public void run() {
                 if (mInputView != null) {
@@ -736,13 +1139,21 @@ public class KeyboardSwitcher implements
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
             String key) {
         if (PREF_KEYBOARD_LAYOUT.equals(key)) {
-            changeLatinKeyboardView(Integer.valueOf(sharedPreferences
-                    .getString(key, DEFAULT_LAYOUT_ID)), true);
+            // Uses the view prepared while browsing themes, if any.
+            int layout = Integer.valueOf(sharedPreferences.getString(key, DEFAULT_LAYOUT_ID));
+            if (THEMES.length <= layout) {
+                layout = Integer.valueOf(DEFAULT_LAYOUT_ID);
+            }
+            if (mInputView == null) {
+                changeLatinKeyboardView(layout, true);
+            } else {
+                prepareInputView(layout, true);
+            }
         } else if (PREF_SETTINGS_KEY.equals(key)) {
             updateSettingsKeyState(sharedPreferences);
-            recreateInputView();
+            recreateInputViewAsync();
         } else if (SettingsDefinitions.KEY_KEYBOARD_FONT.equals(key)) {
-            recreateInputView();
+            recreateInputViewAsync();
         }
     }
 
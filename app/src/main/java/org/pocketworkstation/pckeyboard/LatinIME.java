@@ -37,6 +37,7 @@ import android.inputmethodservice.InputMethodService;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.SystemClock;
@@ -49,6 +50,8 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.PrintWriterPrinter;
 import android.util.Printer;
+import android.view.Choreographer;
+import android.view.FrameMetrics;
 import android.view.HapticFeedbackConstants;
 import android.view.KeyEvent;
 import android.view.View;
@@ -70,10 +73,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
@@ -87,8 +88,6 @@ public class LatinIME extends InputMethodService implements
     private static final String TAG = "PCKeyboardIME";
     private static final String NOTIFICATION_CHANNEL_ID = "PCKeyboard";
     private static final int NOTIFICATION_ONGOING_ID = 1001;
-    static Map<Integer, String> ESC_SEQUENCES;
-    static Map<Integer, Integer> CTRL_SEQUENCES;
 
     private static final String PREF_VIBRATE_ON = "vibrate_on";
     static final String PREF_VIBRATE_LEN = "vibrate_len";
@@ -111,6 +110,7 @@ public class LatinIME extends InputMethodService implements
     static final String PREF_HINT_MODE = "pref_hint_mode";
     static final String PREF_LONGPRESS_TIMEOUT = "pref_long_press_duration";
     static final String PREF_RENDER_MODE = "pref_render_mode";
+    static final String PREF_DELETE_ACCELERATE_DELAY = "pref_delete_accelerate_delay";
     static final String PREF_SWIPE_UP = "pref_swipe_up";
     static final String PREF_SWIPE_DOWN = "pref_swipe_down";
     static final String PREF_SWIPE_LEFT = "pref_swipe_left";
@@ -123,6 +123,8 @@ public class LatinIME extends InputMethodService implements
 
     // How many continuous deletes at which to start deleting at a higher speed.
     private static final int DELETE_ACCELERATE_AT = 20;
+    // Characters removed per repeat once backspace switches to bulk deletes.
+    private static final int DELETE_CHUNK_CHARS = 4;
     // Key events coming any faster than this are long-presses.
     private static final int QUICK_PRESS = 200;
 
@@ -189,6 +191,9 @@ public class LatinIME extends InputMethodService implements
     private boolean mInputTypeNoAutoCorrect;
 
     private int mDeleteCount;
+    private long mDeleteStartTime;
+    // Hold time before backspace deletes in chunks, 0 to always send key events.
+    private int mDeleteAccelerateDelay;
     private long mLastKeyTime;
 
     // Modifier keys state
@@ -221,6 +226,26 @@ public class LatinIME extends InputMethodService implements
 
     private NotificationReceiver mNotificationReceiver;
 
+    // Coalesces output to the editor, see getCurrentInputConnection()
+    private final CommitPipeline mCommitPipeline = new CommitPipeline();
+    private final TextCommitStreamer mTextStreamer = new TextCommitStreamer(this);
+    // Terminal editor, keys bypass the text entry logic, see onRawTerminalKey()
+    private boolean mRawTerminalMode;
+
+    // Frame time telemetry, API 24+
+    private HandlerThread mFrameMetricsThread;
+    private Window.OnFrameMetricsAvailableListener mFrameMetricsListener;
+
+    // Auto-caps state needs recomputing, see postUpdateShiftKeyState()
+    private boolean mShiftUpdatePending;
+    private final Choreographer.FrameCallback mShiftUpdateCallback =
+            new Choreographer.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
+            mShiftUpdatePending = false;
+            updateShiftKeyState(getCurrentInputEditorInfo());
+        }
+    };
+
     /* package */Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -259,6 +284,7 @@ public class LatinIME extends InputMethodService implements
         LatinIME.sKeyboardSettings.hintMode = Integer.parseInt(prefs.getString(PREF_HINT_MODE, res.getString(R.string.default_hint_mode)));
         LatinIME.sKeyboardSettings.longpressTimeout = getPrefInt(prefs, PREF_LONGPRESS_TIMEOUT, res.getString(R.string.default_long_press_duration));
         LatinIME.sKeyboardSettings.renderMode = getPrefInt(prefs, PREF_RENDER_MODE, res.getString(R.string.default_render_mode));
+        mDeleteAccelerateDelay = getPrefInt(prefs, PREF_DELETE_ACCELERATE_DELAY, res.getString(R.string.default_delete_accelerate_delay));
         mSwipeUpAction = prefs.getString(PREF_SWIPE_UP, res.getString(R.string.default_swipe_up));
         mSwipeDownAction = prefs.getString(PREF_SWIPE_DOWN, res.getString(R.string.default_swipe_down));
         mSwipeLeftAction = prefs.getString(PREF_SWIPE_LEFT, res.getString(R.string.default_swipe_left));
@@ -268,6 +294,8 @@ public class LatinIME extends InputMethodService implements
         sKeyboardSettings.initPrefs(prefs, res);
 
         updateKeyboardOptions();
+        mKeyboardSwitcher.startInitialBuilds();
+        KeyCharacterMapCache.prepareAsync();
 
         mWordSeparators = mResources.getString(R.string.word_separators);
         mSentenceSeparators = mResources.getString(R.string.sentence_separators);
@@ -280,6 +308,40 @@ public class LatinIME extends InputMethodService implements
         registerReceiver(mReceiver, filter);
         prefs.registerOnSharedPreferenceChangeListener(this);
         setNotification(mKeyboardNotification);
+        startFrameMetrics();
+    }
+
+    private void startFrameMetrics() {
+        Window window = getWindow().getWindow();
+        LatinIMEUtil.FrameStats frameStats = LatinIMEUtil.FrameStats.getInstance();
+        frameStats.setRefreshRate(window.getWindowManager().getDefaultDisplay().getRefreshRate());
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return;
+        mFrameMetricsThread = new HandlerThread("FrameMetrics");
+        mFrameMetricsThread.start();
+        mFrameMetricsListener = new Window.OnFrameMetricsAvailableListener() {
+            @Override
+            public void onFrameMetricsAvailable(Window w, FrameMetrics frameMetrics,
+                    int dropCountSinceLastInvocation) {
+                LatinIMEUtil.FrameStats.getInstance().recordFrame(
+                        frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION));
+            }
+        };
+        window.addOnFrameMetricsAvailableListener(mFrameMetricsListener,
+                new Handler(mFrameMetricsThread.getLooper()));
+        frameStats.setUsingFrameMetrics(true);
+    }
+
+    private void stopFrameMetrics() {
+        if (mFrameMetricsListener == null) return;
+        LatinIMEUtil.FrameStats.getInstance().setUsingFrameMetrics(false);
+        try {
+            getWindow().getWindow().removeOnFrameMetricsAvailableListener(mFrameMetricsListener);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "FrameMetrics listener was not registered");
+        }
+        mFrameMetricsListener = null;
+        mFrameMetricsThread.quit();
+        mFrameMetricsThread = null;
     }
 
     private int getKeyboardModeNum(int origMode, int override) {
@@ -393,6 +455,7 @@ public class LatinIME extends InputMethodService implements
 
     @Override
     public void onDestroy() {
+        stopFrameMetrics();
         unregisterReceiver(mReceiver);
         if (mNotificationReceiver != null) {
         	unregisterReceiver(mNotificationReceiver);
@@ -401,6 +464,12 @@ public class LatinIME extends InputMethodService implements
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mKeyboardSwitcher.onTrimMemory(level);
+    }
+
     @Override
     public void onConfigurationChanged(Configuration conf) {
         Log.i("PCKeyboard", "onConfigurationChanged()");
@@ -410,8 +479,11 @@ public class LatinIME extends InputMethodService implements
             if (ic != null)
                 ic.finishComposingText(); // For voice input
             mOrientation = conf.orientation;
-            reloadKeyboards();
+            // Keep the built keyboards, they are rescaled to the new size when next shown.
+            updateKeyboardOptions();
+            mKeyboardSwitcher.makeKeyboards(false);
         }
+        mKeyboardSwitcher.onConfigurationChanged();
         mConfigurationChanging = true;
         super.onConfigurationChanged(conf);
         mConfigurationChanging = false;
@@ -420,7 +492,8 @@ public class LatinIME extends InputMethodService implements
     @Override
     public View onCreateInputView() {
         mKeyboardSwitcher.recreateInputView();
-        mKeyboardSwitcher.makeKeyboards(true);
+        // The keyboards don't depend on the view, keep them across view recreation.
+        mKeyboardSwitcher.makeKeyboards(false);
         mKeyboardSwitcher.setKeyboardMode(KeyboardSwitcher.MODE_TEXT, 0);
         return mKeyboardSwitcher.getInputView();
     }
@@ -442,6 +515,23 @@ public class LatinIME extends InputMethodService implements
     	}
     }
     
+    @Override
+    public void onStartInput(EditorInfo attribute, boolean restarting) {
+        super.onStartInput(attribute, restarting);
+        mCommitPipeline.startInput(attribute);
+        mRawTerminalMode = isConnectbot(attribute);
+    }
+
+    /**
+     * Returns the editor connection wrapped in the commit pipeline, so that all output,
+     * including the framework's sendKeyChar() and sendDownUpKeyEvents(), is queued in
+     * order and sent once per frame.
+     */
+    @Override
+    public InputConnection getCurrentInputConnection() {
+        return mCommitPipeline.wrap(super.getCurrentInputConnection());
+    }
+
     @Override
     public void onStartInputView(EditorInfo attribute, boolean restarting) {
         sKeyboardSettings.editorPackageName = attribute.packageName;
@@ -568,6 +658,9 @@ public class LatinIME extends InputMethodService implements
 
     @Override
     public void onFinishInput() {
+        mTextStreamer.cancel();
+        // The connection may be gone once this returns, send the last edits now.
+        mCommitPipeline.sync();
         super.onFinishInput();
 
         onAutoCompletionStateChanged(false);
@@ -585,7 +678,7 @@ public class LatinIME extends InputMethodService implements
     @Override
     public void onUpdateExtractedText(int token, ExtractedText text) {
         super.onUpdateExtractedText(token, text);
-        InputConnection ic = getCurrentInputConnection();
+        mCommitPipeline.onUpdateExtractedText(text);
     }
 
     @Override
@@ -596,7 +689,10 @@ public class LatinIME extends InputMethodService implements
                 candidatesStart, candidatesEnd);
 
         mJustAddedAutoSpace = false;
-        postUpdateShiftKeyState();
+        // No shift state update here, a late acknowledgment of our own commit would
+        // reset a shift the user pressed in the meantime.
+        mCommitPipeline.onUpdateSelection(newSelStart, newSelEnd);
+        mTextStreamer.onUpdateSelection();
 
         // Make a note of the cursor position
         mLastSelectionStart = newSelStart;
@@ -727,18 +823,28 @@ public class LatinIME extends InputMethodService implements
         mKeyboardSwitcher.makeKeyboards(true);
     }
 
-    private void postUpdateShiftKeyState() {
-        // TODO(klausw): disabling, I have no idea what this is supposed to accomplish.
-//        //updateShiftKeyState(getCurrentInputEditorInfo());
-//
-//        // FIXME: why the delay?
-//        mHandler.removeMessages(MSG_UPDATE_SHIFT_STATE);
-//        // TODO: Should remove this 300ms delay?
-//        mHandler.sendMessageDelayed(mHandler
-//                .obtainMessage(MSG_UPDATE_SHIFT_STATE), 300);
+    /**
+     * Marks the auto-caps state dirty. It is recomputed once before the next frame, or
+     * earlier when a key is pressed, however many edits happen in between.
+     */
+    public void postUpdateShiftKeyState() {
+        if (mShiftUpdatePending) return;
+        mShiftUpdatePending = true;
+        Choreographer.getInstance().postFrameCallback(mShiftUpdateCallback);
+    }
+
+    /**
+     * Carries out a pending shift state update now, before anything depends on it.
+     */
+    private void flushShiftKeyState() {
+        if (mShiftUpdatePending) updateShiftKeyState(getCurrentInputEditorInfo());
     }
 
     public void updateShiftKeyState(EditorInfo attr) {
+        if (mShiftUpdatePending) {
+            Choreographer.getInstance().removeFrameCallback(mShiftUpdateCallback);
+            mShiftUpdatePending = false;
+        }
         InputConnection ic = getCurrentInputConnection();
         if (ic != null && attr != null && mKeyboardSwitcher.isAlphabetMode()) {
             int oldState = getShiftState();
@@ -753,7 +859,7 @@ public class LatinIME extends InputMethodService implements
                 newState = isCapsLock ? getCapsOrShiftLockState() : Keyboard.SHIFT_CAPS;
             }
             //Log.i(TAG, "updateShiftKeyState " + oldState + " -> " + newState);
-            mKeyboardSwitcher.setShiftState(newState);
+            if (newState != oldState) mKeyboardSwitcher.setShiftState(newState);
         }
         if (ic != null) {
             // Clear modifiers other than shift, to avoid them getting stuck
@@ -811,7 +917,7 @@ public class LatinIME extends InputMethodService implements
             ic.deleteSurroundingText(2, 0);
             ic.commitText(". ", 1);
             ic.endBatchEdit();
-            updateShiftKeyState(getCurrentInputEditorInfo());
+            postUpdateShiftKeyState();
             mJustAddedAutoSpace = true;
         }
     }
@@ -881,9 +987,12 @@ public class LatinIME extends InputMethodService implements
     }
 
     private boolean isConnectbot() {
-        EditorInfo ei = getCurrentInputEditorInfo();
+        return isConnectbot(getCurrentInputEditorInfo());
+    }
+
+    private static boolean isConnectbot(EditorInfo ei) {
+        if (ei == null || ei.packageName == null) return false;
         String pkg = ei.packageName;
-        if (ei == null || pkg == null) return false;
         return ((pkg.equalsIgnoreCase("org.connectbot")
             || pkg.equalsIgnoreCase("org.woltage.irssiconnectbot")
             || pkg.equalsIgnoreCase("com.pslib.connectbot")
@@ -901,24 +1010,52 @@ public class LatinIME extends InputMethodService implements
     }
 
     private void sendKeyDown(InputConnection ic, int key, int meta) {
-        long now = System.currentTimeMillis();
-        if (ic != null) ic.sendKeyEvent(new KeyEvent(
-                now, now, KeyEvent.ACTION_DOWN, key, 0, meta));
+        if (ic != null) ic.sendKeyEvent(
+                SyntheticKeyEvents.obtain(KeyEvent.ACTION_DOWN, key, meta));
     }
 
     private void sendKeyUp(InputConnection ic, int key, int meta) {
-        long now = System.currentTimeMillis();
-        if (ic != null) ic.sendKeyEvent(new KeyEvent(
-                now, now, KeyEvent.ACTION_UP, key, 0, meta));
+        if (ic != null) ic.sendKeyEvent(
+                SyntheticKeyEvents.obtain(KeyEvent.ACTION_UP, key, meta));
     }
 
+    /**
+     * Sends a key along with the active modifiers as one chord: modifiers down, key down
+     * and up, modifiers up, all within a single batch edit.
+     */
     private void sendModifiedKeyDownUp(int key, boolean shifted) {
+        sendModifiedKeyDownUp(key, shifted, 0);
+    }
+
+    /**
+     * @param extraMeta meta state the key needs in addition to the active modifiers,
+     *            without sending the modifier keys for it
+     */
+    private void sendModifiedKeyDownUp(int key, boolean shifted, int extraMeta) {
         InputConnection ic = getCurrentInputConnection();
-        int meta = getMetaState(shifted);
+        int meta = getMetaState(shifted) | extraMeta;
+        if (ic != null) ic.beginBatchEdit();
         sendModifierKeysDown(shifted);
         sendKeyDown(ic, key, meta);
         sendKeyUp(ic, key, meta);
         sendModifierKeysUp(shifted);
+        if (ic != null) ic.endBatchEdit();
+    }
+
+    /**
+     * ConnectBot workaround: DPAD_CENTER followed by a key is taken as Ctrl plus that key.
+     */
+    private void sendConnectbotCtrlKey(InputConnection ic, int key) {
+        ic.beginBatchEdit();
+        if (mModAlt) {
+            // send ESC prefix for "Alt"
+            ic.commitText(Character.toString((char) 27), 1);
+        }
+        sendKeyDown(ic, KeyEvent.KEYCODE_DPAD_CENTER, 0);
+        sendKeyUp(ic, KeyEvent.KEYCODE_DPAD_CENTER, 0);
+        sendKeyDown(ic, key, 0);
+        sendKeyUp(ic, key, 0);
+        ic.endBatchEdit();
     }
 
     private boolean isShiftMod() {
@@ -1046,92 +1183,36 @@ public class LatinIME extends InputMethodService implements
             return;
         }
 
-        // TODO(klausw): properly support xterm sequences for Ctrl/Alt modifiers?
-        // See http://slackware.osuosl.org/slackware-12.0/source/l/ncurses/xterm.terminfo
-        // and the output of "$ infocmp -1L". Support multiple sets, and optional 
-        // true numpad keys?
-        if (ESC_SEQUENCES == null) {
-            ESC_SEQUENCES = new HashMap<Integer, String>();
-            CTRL_SEQUENCES = new HashMap<Integer, Integer>();
-
-            // VT escape sequences without leading Escape
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_HOME, "[1~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_END, "[4~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_PAGE_UP, "[5~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_PAGE_DOWN, "[6~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F1, "OP");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F2, "OQ");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F3, "OR");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F4, "OS");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F5, "[15~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F6, "[17~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F7, "[18~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F8, "[19~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F9, "[20~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F10, "[21~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F11, "[23~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F12, "[24~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FORWARD_DEL, "[3~");
-            ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_INSERT, "[2~");
-
-            // Special ConnectBot hack: Ctrl-1 to Ctrl-0 for F1-F10.
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F1, KeyEvent.KEYCODE_1);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F2, KeyEvent.KEYCODE_2);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F3, KeyEvent.KEYCODE_3);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F4, KeyEvent.KEYCODE_4);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F5, KeyEvent.KEYCODE_5);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F6, KeyEvent.KEYCODE_6);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F7, KeyEvent.KEYCODE_7);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F8, KeyEvent.KEYCODE_8);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F9, KeyEvent.KEYCODE_9);
-            CTRL_SEQUENCES.put(-LatinKeyboardView.KEYCODE_FKEY_F10, KeyEvent.KEYCODE_0);
-
-            // Natively supported by ConnectBot
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_DPAD_UP, "OA");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_DPAD_DOWN, "OB");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_DPAD_LEFT, "OD");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_DPAD_RIGHT, "OC");
-
-            // No VT equivalents?
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_DPAD_CENTER, "");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_SYSRQ, "");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_BREAK, "");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_NUM_LOCK, "");
-            // ESC_SEQUENCES.put(-LatinKeyboardView.KEYCODE_SCROLL_LOCK, "");
-        }
         InputConnection ic = getCurrentInputConnection();
-        Integer ctrlseq = null;
+        if (ic == null) return;
+        boolean shifted = isShiftMod();
+        int ctrlDigit = 0;
         if (mConnectbotTabHack) {
-            ctrlseq = CTRL_SEQUENCES.get(code);
+            ctrlDigit = TerminalKeyEncoder.getConnectbotCtrlDigit(code);
         }
-        String seq = ESC_SEQUENCES.get(code);
 
-        if (ctrlseq != null) {
-            if (mModAlt) {
-                // send ESC prefix for "Alt"
-                ic.commitText(Character.toString((char) 27), 1);
-            }
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_DOWN,
-                    KeyEvent.KEYCODE_DPAD_CENTER));
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_UP,
-                    KeyEvent.KEYCODE_DPAD_CENTER));
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_DOWN,
-                    ctrlseq));
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_UP,
-                    ctrlseq));
-        } else if (seq != null) {
-            if (mModAlt) {
-                // send ESC prefix for "Alt"
-                ic.commitText(Character.toString((char) 27), 1);
-            }
-            // send ESC prefix of escape sequence
-            ic.commitText(Character.toString((char) 27), 1);
-            ic.commitText(seq, 1);
+        if (ctrlDigit != 0) {
+            sendConnectbotCtrlKey(ic, ctrlDigit);
         } else {
-            // send key code, let connectbot handle it
-            sendDownUpKeyEvents(code);
+            String seq = TerminalKeyEncoder.encode(code, getTerminalModifiers(shifted));
+            if (seq != null) {
+                // The whole sequence in one commit, terminals may time out on a lone ESC.
+                ic.commitText(seq, 1);
+            } else {
+                // send key code, let connectbot handle it
+                sendDownUpKeyEvents(code);
+            }
         }
-        handleModifierKeysUp(false, false);
+        handleModifierKeysUp(shifted, false);
+    }
+
+    private int getTerminalModifiers(boolean shifted) {
+        int modifiers = 0;
+        if (shifted) modifiers |= TerminalKeyEncoder.MOD_SHIFT;
+        if (mModAlt) modifiers |= TerminalKeyEncoder.MOD_ALT;
+        if (mModCtrl) modifiers |= TerminalKeyEncoder.MOD_CTRL;
+        if (mModMeta) modifiers |= TerminalKeyEncoder.MOD_META;
+        return modifiers;
     }
 
     private final static int asciiToKeyCode[] = new int[127];
@@ -1269,6 +1350,18 @@ public class LatinIME extends InputMethodService implements
             }
         }
 
+        // Anything else the key character map can type, including non-ASCII letters.
+        if ((mModCtrl || mModAlt || mModMeta) && !isConnectbot()) {
+            int key = KeyCharacterMapCache.lookup(ch);
+            if (key != KeyCharacterMapCache.NOT_FOUND) {
+                int charMeta = KeyCharacterMapCache.getMetaState(key);
+                boolean shifted = modShift || (charMeta & KeyEvent.META_SHIFT_ON) != 0;
+                sendModifiedKeyDownUp(KeyCharacterMapCache.getKeyCode(key), shifted,
+                        charMeta & ~(KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON));
+                return;
+            }
+        }
+
         if (ch >= '0' && ch <= '9') {
             //WIP
             InputConnection ic = getCurrentInputConnection();
@@ -1289,18 +1382,7 @@ public class LatinIME extends InputMethodService implements
 
         // FIXME: tab and ^I don't work in connectbot, hackish workaround
         if (tabHack) {
-            if (mModAlt) {
-                // send ESC prefix
-                ic.commitText(Character.toString((char) 27), 1);
-            }
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_DOWN,
-                    KeyEvent.KEYCODE_DPAD_CENTER));
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_UP,
-                    KeyEvent.KEYCODE_DPAD_CENTER));
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_DOWN,
-                    KeyEvent.KEYCODE_I));
-            ic.sendKeyEvent(new KeyEvent(KeyEvent.ACTION_UP,
-                    KeyEvent.KEYCODE_I));
+            sendConnectbotCtrlKey(ic, KeyEvent.KEYCODE_I);
         } else {
             sendModifiedKeyDownUp(KeyEvent.KEYCODE_TAB);
         }
@@ -1331,12 +1413,25 @@ public class LatinIME extends InputMethodService implements
     // Implementation of KeyboardViewListener
 
     public void onKey(int primaryCode, int[] keyCodes, int x, int y) {
+        final long startNanos = System.nanoTime();
         long when = SystemClock.uptimeMillis();
         if (primaryCode != Keyboard.KEYCODE_DELETE
                 || when > mLastKeyTime + QUICK_PRESS) {
             mDeleteCount = 0;
         }
+        if (mDeleteCount == 0) mDeleteStartTime = when;
         mLastKeyTime = when;
+        if (mTextStreamer.isStreaming() && !isStateKey(primaryCode)
+                && primaryCode != LatinKeyboardView.KEYCODE_ESCAPE) {
+            // Typed keys would land in the middle of the text being sent.
+            mTextStreamer.cancel();
+        }
+        if (mRawTerminalMode && onRawTerminalKey(primaryCode)) {
+            mKeyboardSwitcher.onKey(primaryCode);
+            mEnteredText = null;
+            LatinIMEUtil.KeyLatencyStats.getRawTerminal().record(System.nanoTime() - startNanos);
+            return;
+        }
         final boolean distinctMultiTouch = mKeyboardSwitcher
                 .hasDistinctMultitouch();
         switch (primaryCode) {
@@ -1409,6 +1504,9 @@ public class LatinIME extends InputMethodService implements
             sendTab();
             break;
         case LatinKeyboardView.KEYCODE_ESCAPE:
+            if (mTextStreamer.cancel()) {
+                break;
+            }
             if (processMultiKey(primaryCode)) {
                 break;
             }
@@ -1454,7 +1552,7 @@ public class LatinIME extends InputMethodService implements
                     //Log.i(TAG, "double dead key");
                     break; // pressing a dead key twice produces spacing equivalent
                 }
-                updateShiftKeyState(getCurrentInputEditorInfo());
+                postUpdateShiftKeyState();
                 break;
             }
             if (processMultiKey(primaryCode)) {
@@ -1474,6 +1572,107 @@ public class LatinIME extends InputMethodService implements
         // Reset after any single keystroke
         mEnteredText = null;
         //mDeadAccentBuffer.clear();  // FIXME
+        if (isConnectbot()) {
+            // Terminal keys the raw path passed on, other editors aren't comparable.
+            LatinIMEUtil.KeyLatencyStats.getNormal().record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Fast path for terminal editors: characters and editing keys are encoded straight
+     * to what the terminal expects, skipping word tracking, auto-caps and the
+     * double-space period. Shift, mode and option keys, and anything typed while a
+     * compose or dead key sequence is active, take the normal path.
+     * @return true if the key was handled
+     */
+    private boolean onRawTerminalKey(int primaryCode) {
+        if (mComposeMode || mDeadAccentBuffer.composeBuffer.length() > 0) return false;
+        InputConnection ic = getCurrentInputConnection();
+        if (ic == null) return false;
+        switch (primaryCode) {
+        case Keyboard.KEYCODE_DELETE:
+            sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+            if (mDeleteCount > DELETE_ACCELERATE_AT) {
+                sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+            }
+            mDeleteCount++;
+            return true;
+        case 9 /* Tab */:
+            sendTab();
+            return true;
+        case LatinKeyboardView.KEYCODE_ESCAPE:
+            if (!mTextStreamer.cancel()) sendEscape();
+            return true;
+        case LatinKeyboardView.KEYCODE_DPAD_UP:
+        case LatinKeyboardView.KEYCODE_DPAD_DOWN:
+        case LatinKeyboardView.KEYCODE_DPAD_LEFT:
+        case LatinKeyboardView.KEYCODE_DPAD_RIGHT:
+        case LatinKeyboardView.KEYCODE_DPAD_CENTER:
+        case LatinKeyboardView.KEYCODE_HOME:
+        case LatinKeyboardView.KEYCODE_END:
+        case LatinKeyboardView.KEYCODE_PAGE_UP:
+        case LatinKeyboardView.KEYCODE_PAGE_DOWN:
+        case LatinKeyboardView.KEYCODE_FKEY_F1:
+        case LatinKeyboardView.KEYCODE_FKEY_F2:
+        case LatinKeyboardView.KEYCODE_FKEY_F3:
+        case LatinKeyboardView.KEYCODE_FKEY_F4:
+        case LatinKeyboardView.KEYCODE_FKEY_F5:
+        case LatinKeyboardView.KEYCODE_FKEY_F6:
+        case LatinKeyboardView.KEYCODE_FKEY_F7:
+        case LatinKeyboardView.KEYCODE_FKEY_F8:
+        case LatinKeyboardView.KEYCODE_FKEY_F9:
+        case LatinKeyboardView.KEYCODE_FKEY_F10:
+        case LatinKeyboardView.KEYCODE_FKEY_F11:
+        case LatinKeyboardView.KEYCODE_FKEY_F12:
+        case LatinKeyboardView.KEYCODE_FORWARD_DEL:
+        case LatinKeyboardView.KEYCODE_INSERT:
+            sendSpecialKey(-primaryCode);
+            return true;
+        }
+        if (primaryCode <= 0 || primaryCode > Character.MAX_VALUE) return false;
+        if (mDeadKeysActive && Character.getType(primaryCode) == Character.NON_SPACING_MARK) {
+            return false;
+        }
+
+        char ch = (char) primaryCode;
+        if (ch == ASCII_ENTER && !mModCtrl && !mModAlt) {
+            // The terminal turns Enter into its own line ending.
+            sendKeyChar(ch);
+        } else if (mModCtrl && (ch & 31) == 9) {
+            sendTab();
+        } else {
+            // ESC prefix for Alt, control character for Ctrl, in one commit.
+            String out = Character.toString(mModCtrl && ch < 127 ? (char) (ch & 31) : ch);
+            if (mModAlt) out = (char) 27 + out;
+            ic.commitText(out, 1);
+        }
+        // Release one-shot modifiers, without consulting the editor's caps mode.
+        int shiftState = getShiftState();
+        handleModifierKeysUp(shiftState == Keyboard.SHIFT_ON
+                || shiftState == Keyboard.SHIFT_CAPS, false);
+        return true;
+    }
+
+    /**
+     * Returns true for keys that only change the keyboard state and don't send anything.
+     */
+    private static boolean isStateKey(int primaryCode) {
+        switch (primaryCode) {
+        case Keyboard.KEYCODE_SHIFT:
+        case Keyboard.KEYCODE_MODE_CHANGE:
+        case Keyboard.KEYCODE_CANCEL:
+        case LatinKeyboardView.KEYCODE_CTRL_LEFT:
+        case LatinKeyboardView.KEYCODE_ALT_LEFT:
+        case LatinKeyboardView.KEYCODE_META_LEFT:
+        case LatinKeyboardView.KEYCODE_FN:
+        case LatinKeyboardView.KEYCODE_OPTIONS:
+        case LatinKeyboardView.KEYCODE_OPTIONS_LONGPRESS:
+        case LatinKeyboardView.KEYCODE_COMPOSE:
+        case LatinKeyboardView.KEYCODE_NEXT_LANGUAGE:
+        case LatinKeyboardView.KEYCODE_PREV_LANGUAGE:
+            return true;
+        }
+        return false;
     }
 
     public void onText(CharSequence text) {
@@ -1481,10 +1680,19 @@ public class LatinIME extends InputMethodService implements
         if (ic == null)
             return;
         ic.beginBatchEdit();
-        maybeRemovePreviousPeriod(text);
-        ic.commitText(text, 1);
+        if (mTextStreamer.isStreaming()) {
+            // Queue it behind the text still being sent.
+            mTextStreamer.start(text);
+        } else {
+            maybeRemovePreviousPeriod(text);
+            if (text.length() >= TextCommitStreamer.STREAM_THRESHOLD) {
+                mTextStreamer.start(text);
+            } else {
+                ic.commitText(text, 1);
+            }
+        }
         ic.endBatchEdit();
-        updateShiftKeyState(getCurrentInputEditorInfo());
+        postUpdateShiftKeyState();
         mKeyboardSwitcher.onKey(0); // dummy key code.
         mJustAddedAutoSpace = false;
         mEnteredText = text;
@@ -1501,15 +1709,55 @@ public class LatinIME extends InputMethodService implements
             return;
 
         ic.beginBatchEdit();
-        sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
-        if (mDeleteCount > DELETE_ACCELERATE_AT) {
+        int chunk = getDeleteChunk(ic);
+        if (chunk > 0) {
+            ic.deleteSurroundingText(chunk, 0);
+        } else {
             sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+            if (mDeleteCount > DELETE_ACCELERATE_AT) {
+                sendDownUpKeyEvents(KeyEvent.KEYCODE_DEL);
+            }
         }
         postUpdateShiftKeyState();
         TextEntryState.backspace();
         ic.endBatchEdit();
     }
 
+    /**
+     * Returns the number of characters a held backspace should remove in one go, or 0 to
+     * send a key event. The chunk grows from a few characters to words and then lines the
+     * longer the key is held.
+     */
+    private int getDeleteChunk(InputConnection ic) {
+        if (mDeleteAccelerateDelay <= 0 || mDeleteCount == 0) return 0;
+        long held = SystemClock.uptimeMillis() - mDeleteStartTime;
+        if (held < mDeleteAccelerateDelay) return 0;
+        // Terminals expect key events, and a selection is removed as a whole by the editor.
+        EditorInfo ei = getCurrentInputEditorInfo();
+        if (ei == null || ei.inputType == EditorInfo.TYPE_NULL || isConnectbot()) return 0;
+        if (mLastSelectionStart != mLastSelectionEnd) return 0;
+        // The text mirror holds this much, so this is answered locally most of the time.
+        CharSequence before = ic.getTextBeforeCursor(EditorTextMirror.MIRROR_CHARS, 0);
+        if (TextUtils.isEmpty(before)) return 0;
+
+        int chunk;
+        if (held < 2 * mDeleteAccelerateDelay) {
+            chunk = DELETE_CHUNK_CHARS;
+        } else if (held < 4 * mDeleteAccelerateDelay) {
+            chunk = EditingUtil.getPreviousWordLength(before, mWordSeparators);
+        } else {
+            chunk = EditingUtil.getPreviousLineLength(before);
+        }
+        chunk = Math.min(Math.max(chunk, 1), before.length());
+        // Don't split a surrogate pair
+        int start = before.length() - chunk;
+        if (start > 0 && Character.isLowSurrogate(before.charAt(start))
+                && Character.isHighSurrogate(before.charAt(start - 1))) {
+            ++chunk;
+        }
+        return chunk;
+    }
+
     private void setModCtrl(boolean val) {
         // Log.i("LatinIME", "setModCtrl "+ mModCtrl + "->" + val + ", chording=" + mCtrlKeyState.isChording());
         mKeyboardSwitcher.setCtrlIndicator(val);
@@ -1597,7 +1845,8 @@ public class LatinIME extends InputMethodService implements
 
     private void handleShiftInternal(boolean forceState, int newState) {
         //Log.i(TAG, "handleShiftInternal forceNormal=" + forceNormal);
-        mHandler.removeMessages(MSG_UPDATE_SHIFT_STATE);
+        // Toggle from the up to date auto-caps state
+        flushShiftKeyState();
         KeyboardSwitcher switcher = mKeyboardSwitcher;
         if (switcher.isAlphabetMode()) {
             if (forceState) {
@@ -1612,7 +1861,7 @@ public class LatinIME extends InputMethodService implements
 
     private void handleCharacter(int primaryCode, int[] keyCodes) {
         sendModifiableKeyChar((char) primaryCode);
-        updateShiftKeyState(getCurrentInputEditorInfo());
+        postUpdateShiftKeyState();
         TextEntryState.typedCharacter((char) primaryCode,
                 isWordSeparator(primaryCode));
     }
@@ -1627,7 +1876,7 @@ public class LatinIME extends InputMethodService implements
         if (primaryCode == ASCII_SPACE) {
             doubleSpace();
         }
-        updateShiftKeyState(getCurrentInputEditorInfo());
+        postUpdateShiftKeyState();
         if (ic != null) {
             ic.endBatchEdit();
         }
@@ -1681,7 +1930,7 @@ public class LatinIME extends InputMethodService implements
 
     private void sendSpace() {
         sendModifiableKeyChar((char) ASCII_SPACE);
-        updateShiftKeyState(getCurrentInputEditorInfo());
+        postUpdateShiftKeyState();
         // onKey(KEY_SPACE[0], KEY_SPACE);
     }
 
@@ -1707,7 +1956,7 @@ public class LatinIME extends InputMethodService implements
             needReload = true;
         }
         if (sKeyboardSettings.hasFlag(GlobalKeyboardSettings.FLAG_PREF_RECREATE_INPUT_VIEW)) {
-            mKeyboardSwitcher.recreateInputView();
+            mKeyboardSwitcher.recreateInputViewAsync();
         }
         if (sKeyboardSettings.hasFlag(GlobalKeyboardSettings.FLAG_PREF_RESET_MODE_OVERRIDE)) {
             mKeyboardModeOverrideLandscape = 0;
@@ -1755,6 +2004,9 @@ public class LatinIME extends InputMethodService implements
         } else if (PREF_LONGPRESS_TIMEOUT.equals(key)) {
                LatinIME.sKeyboardSettings.longpressTimeout = getPrefInt(sharedPreferences, PREF_LONGPRESS_TIMEOUT,
                        res.getString(R.string.default_long_press_duration));
+        } else if (PREF_DELETE_ACCELERATE_DELAY.equals(key)) {
+            mDeleteAccelerateDelay = getPrefInt(sharedPreferences, PREF_DELETE_ACCELERATE_DELAY,
+                    res.getString(R.string.default_delete_accelerate_delay));
         } else if (PREF_RENDER_MODE.equals(key)) {
             LatinIME.sKeyboardSettings.renderMode = getPrefInt(sharedPreferences, PREF_RENDER_MODE,
                     res.getString(R.string.default_render_mode));
@@ -1844,6 +2096,8 @@ public class LatinIME extends InputMethodService implements
     }
 
     public void onPress(int primaryCode) {
+        // Letters are cased from the shift state when the key is released.
+        flushShiftKeyState();
         InputConnection ic = getCurrentInputConnection();
         if (mKeyboardSwitcher.isVibrateAndSoundFeedbackRequired()) {
             vibrate();
@@ -2149,6 +2403,13 @@ public class LatinIME extends InputMethodService implements
         p.println("  mSoundOn=" + mSoundOn);
         p.println("  mVibrateOn=" + mVibrateOn);
         p.println("  mPopupOn=" + mPopupOn);
+        p.println("  " + PopupKeyboardCache.getInstance());
+        p.println("  " + KeyboardGeometryCache.getInstance(this));
+        p.println("  " + mCommitPipeline);
+        p.println("  mRawTerminalMode=" + mRawTerminalMode);
+        LatinIMEUtil.FrameStats.getInstance().dump(p);
+        LatinIMEUtil.KeyLatencyStats.getNormal().dump(p);
+        LatinIMEUtil.KeyLatencyStats.getRawTerminal().dump(p);
     }
 
     // Characters per second measurement
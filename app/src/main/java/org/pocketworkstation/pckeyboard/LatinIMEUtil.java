@@ -22,6 +22,9 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.Printer;
+
+import java.util.Arrays;
 
 public class LatinIMEUtil {
 
@@ -161,4 +164,177 @@ public class LatinIMEUtil {
             mLength = 0;
         }
     }
+
+    /**
+     * Ring buffer of the most recent durations, in nanoseconds. Not thread safe, owners
+     * synchronize around it.
+     */
+    /* package */ static class DurationRing {
+        private final long[] mBuf;
+        private int mEnd = 0;
+        private int mLength = 0;
+
+        /* package */ DurationRing(int size) {
+            mBuf = new long[size];
+        }
+        /**
+         * Adds a duration, replacing the oldest one once the buffer is full.
+         *
+         * @return the slot the duration was stored in, for parallel per-sample buffers
+         */
+        public int add(long durationNanos) {
+            final int slot = mEnd;
+            mBuf[slot] = durationNanos;
+            mEnd = (mEnd + 1) % mBuf.length;
+            if (mLength < mBuf.length) {
+                ++mLength;
+            }
+            return slot;
+        }
+        public int size() {
+            return mLength;
+        }
+        public long sum() {
+            long total = 0;
+            for (int i = 0; i < mLength; ++i) {
+                total += mBuf[i];
+            }
+            return total;
+        }
+        /**
+         * Returns the given percentiles of the buffered durations, sorting only once.
+         */
+        public long[] percentiles(int... percents) {
+            long[] sorted = Arrays.copyOf(mBuf, mLength);
+            Arrays.sort(sorted);
+            long[] result = new long[percents.length];
+            for (int i = 0; i < percents.length; ++i) {
+                result[i] = sorted[Math.min(mLength * percents[i] / 100, mLength - 1)];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Ring buffer of recent keyboard frame timings. Frames are reported either by the
+     * FrameMetrics listener of the IME window (API 24+) or, as a fallback, by timing the
+     * keyboard view's onDraw. Methods may be called from the FrameMetrics handler thread.
+     */
+    /* package */ static class FrameStats {
+        /* package */ static final int BUFSIZE = 120;
+        private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000000000L / 60;
+        private static FrameStats sFrameStats = new FrameStats();
+        private final DurationRing mDurations = new DurationRing(BUFSIZE);
+        private final int[] mMissedVsyncBuf = new int[BUFSIZE];
+        private final int[] mKeysDrawnBuf = new int[BUFSIZE];
+        private long mFrameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+        private boolean mUsingFrameMetrics;
+        // Keys drawn into the keyboard buffer since the last recorded frame
+        private int mPendingKeysDrawn;
+        private long mTotalFrames;
+        private long mTotalJankFrames;
+        private long mTotalMissedVsyncs;
+
+        private FrameStats() {
+        }
+        public static FrameStats getInstance() {
+            return sFrameStats;
+        }
+        public synchronized void setRefreshRate(float refreshRate) {
+            mFrameIntervalNanos = refreshRate > 0
+                    ? (long) (1000000000L / refreshRate) : DEFAULT_FRAME_INTERVAL_NANOS;
+        }
+        public synchronized void setUsingFrameMetrics(boolean usingFrameMetrics) {
+            mUsingFrameMetrics = usingFrameMetrics;
+        }
+        public synchronized boolean isUsingFrameMetrics() {
+            return mUsingFrameMetrics;
+        }
+        public synchronized void addKeysDrawn(int keysDrawn) {
+            mPendingKeysDrawn += keysDrawn;
+        }
+        public synchronized void recordFrame(long durationNanos) {
+            final int missedVsyncs = (int) (durationNanos / mFrameIntervalNanos);
+            final int slot = mDurations.add(durationNanos);
+            mMissedVsyncBuf[slot] = missedVsyncs;
+            mKeysDrawnBuf[slot] = mPendingKeysDrawn;
+            mPendingKeysDrawn = 0;
+            ++mTotalFrames;
+            if (missedVsyncs > 0) {
+                ++mTotalJankFrames;
+                mTotalMissedVsyncs += missedVsyncs;
+            }
+        }
+        /**
+         * Returns a one-line summary of the frames currently in the buffer.
+         */
+        public synchronized String getSummary() {
+            final int length = mDurations.size();
+            if (length == 0) return "no frames";
+            final long[] p90max = mDurations.percentiles(90, 100);
+            int jank = 0;
+            int missed = 0;
+            int keysDrawn = 0;
+            for (int i = 0; i < length; ++i) {
+                if (mMissedVsyncBuf[i] > 0) ++jank;
+                missed += mMissedVsyncBuf[i];
+                keysDrawn += mKeysDrawnBuf[i];
+            }
+            return String.format("%d frames, avg %.1fms, p90 %.1fms, max %.1fms,"
+                    + " jank %d (%d vsyncs missed), keys/frame %.1f",
+                    length, mDurations.sum() / 1e6 / length, p90max[0] / 1e6,
+                    p90max[1] / 1e6, jank, missed, (float) keysDrawn / length);
+        }
+        public synchronized void dump(Printer p) {
+            p.println("Keyboard frame stats (" + (mUsingFrameMetrics ? "FrameMetrics" : "onDraw")
+                    + ", vsync " + (mFrameIntervalNanos / 1000) + "us) :");
+            p.println("  total frames=" + mTotalFrames + " jank=" + mTotalJankFrames
+                    + " missedVsyncs=" + mTotalMissedVsyncs);
+            p.println("  recent: " + getSummary());
+        }
+    }
+
+    /**
+     * Time spent handling key presses on the UI thread, from onKey() until the output is
+     * queued. Only keys sent to terminal editors are counted, kept separately for the raw
+     * and the normal input path so that the two can be compared on the same editors.
+     */
+    /* package */ static class KeyLatencyStats {
+        /* package */ static final int BUFSIZE = 256;
+        private static KeyLatencyStats sNormal = new KeyLatencyStats("terminal normal");
+        private static KeyLatencyStats sRawTerminal = new KeyLatencyStats("terminal raw");
+        private final String mName;
+        private final DurationRing mDurations = new DurationRing(BUFSIZE);
+        private long mTotalKeys;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        private KeyLatencyStats(String name) {
+            mName = name;
+        }
+        public static KeyLatencyStats getNormal() {
+            return sNormal;
+        }
+        public static KeyLatencyStats getRawTerminal() {
+            return sRawTerminal;
+        }
+        public synchronized void record(long durationNanos) {
+            mDurations.add(durationNanos);
+            ++mTotalKeys;
+            mTotalNanos += durationNanos;
+            if (durationNanos > mMaxNanos) mMaxNanos = durationNanos;
+        }
+        public synchronized void dump(Printer p) {
+            p.println("Key latency, " + mName + " path :");
+            if (mTotalKeys == 0) {
+                p.println("  no keys");
+                return;
+            }
+            final long[] p50p90 = mDurations.percentiles(50, 90);
+            p.println(String.format("  total keys=%d avg %.3fms max %.3fms,"
+                    + " recent p50 %.3fms p90 %.3fms",
+                    mTotalKeys, mTotalNanos / 1e6 / mTotalKeys, mMaxNanos / 1e6,
+                    p50p90[0] / 1e6, p50p90[1] / 1e6));
+        }
+    }
 }
@@ -36,6 +36,8 @@ import android.util.Log;
 import android.view.ViewConfiguration;
 import android.view.inputmethod.EditorInfo;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
 
@@ -91,7 +93,7 @@ public class LatinKeyboard extends Keyboard {
 
     // TODO: remove this attribute when either Keyboard.mDefaultVerticalGap or Key.parent becomes
     // non-private.
-    private final int mVerticalGap;
+    private int mVerticalGap;
 
     private LatinKeyboard mExtensionKeyboard;
 
@@ -108,14 +110,24 @@ public class LatinKeyboard extends Keyboard {
     // its short language name will be used instead.
     private static final float MINIMUM_SCALE_OF_LANGUAGE_NAME = 0.8f;
 
-    private static int sSpacebarVerticalCorrection;
+    private final int mSpacebarVerticalCorrection;
 
     public LatinKeyboard(Context context, int xmlLayoutResId) {
         this(context, xmlLayoutResId, 0, 0);
     }
 
     public LatinKeyboard(Context context, int xmlLayoutResId, int mode, float kbHeightPercent) {
-        super(context, 0, xmlLayoutResId, mode, kbHeightPercent);
+        this(context, xmlLayoutResId, mode, kbHeightPercent, LayoutSettings.current());
+    }
+
+    /**
+     * Creates a keyboard using previously captured settings. This doesn't read any global
+     * state and may be called on a worker thread.
+     */
+    LatinKeyboard(Context context, int xmlLayoutResId, int mode, float kbHeightPercent,
+            LayoutSettings settings) {
+        super(context, 0, xmlLayoutResId, mode, kbHeightPercent, settings,
+                KeyboardGeometryCache.getInstance(context));
         final Resources res = context.getResources();
         //Log.i("PCKeyboard", "keyHeight=" + this.getKeyHeight());
         //this.setKeyHeight(30); // is useless, see http://code.google.com/p/android/issues/detail?id=4532
@@ -140,7 +152,7 @@ public class LatinKeyboard extends Keyboard {
         m123MicPreviewIcon = res.getDrawable(R.drawable.sym_keyboard_feedback_123_mic);
         mHintIcon = res.getDrawable(R.drawable.hint_popup);
         setDefaultBounds(m123MicPreviewIcon);
-        sSpacebarVerticalCorrection = res.getDimensionPixelOffset(
+        mSpacebarVerticalCorrection = res.getDimensionPixelOffset(
                 R.dimen.spacebar_vertical_correction);
         mIsAlphaKeyboard = xmlLayoutResId == R.xml.kbd_qwerty;
         mIsAlphaFullKeyboard = xmlLayoutResId == R.xml.kbd_full;
@@ -151,10 +163,30 @@ public class LatinKeyboard extends Keyboard {
         mVerticalGap = super.getVerticalGap();
     }
 
+    @Override
+    public boolean rescale(Resources res, float kbHeightPercent) {
+        if (!super.rescale(res, kbHeightPercent)) return false;
+        mVerticalGap = super.getVerticalGap();
+        // The synthesized settings key icon is drawn at the key size.
+        updateF1Key();
+        return true;
+    }
+
     @Override
     protected Key createKeyFromXml(Resources res, Row parent, int x, int y,
             XmlResourceParser parser) {
-        Key key = new LatinKey(res, parent, x, y, parser);
+        return registerKey(new LatinKey(res, parent, x, y, parser));
+    }
+
+    @Override
+    protected Key createKeyFromCache(Resources res, Row parent, DataInputStream in)
+            throws IOException {
+        Key key = new LatinKey(parent);
+        key.readGeometry(in, res);
+        return registerKey(key);
+    }
+
+    private Key registerKey(Key key) {
         if (key.codes == null) return key;
         switch (key.codes[0]) {
         case LatinIME.ASCII_ENTER:
@@ -486,7 +518,7 @@ public class LatinKeyboard extends Keyboard {
             }
             if (code == KEYCODE_DELETE) x -= key.width / 6;
         } else if (code == LatinIME.ASCII_SPACE) {
-            y += LatinKeyboard.sSpacebarVerticalCorrection;
+            y += mSpacebarVerticalCorrection;
         } else if (mPrefLetterFrequencies != null) {
             // New coordinate? Reset
             if (mPrefLetterX != x || mPrefLetterY != y) {
@@ -644,6 +676,10 @@ public class LatinKeyboard extends Keyboard {
             super(res, parent, x, y, parser);
         }
 
+        public LatinKey(Keyboard.Row parent) {
+            super(parent);
+        }
+
         // functional is used for styling.
         private boolean isFunctionalKey() {
             return modifier;
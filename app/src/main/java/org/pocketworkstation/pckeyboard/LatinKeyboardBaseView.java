@@ -43,11 +43,14 @@ import org.pocketworkstation.pckeyboard.Keyboard.Key;
 import org.pocketworkstation.pckeyboard.graphics.SeamlessPopupDrawable;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.util.TypedValue;
 import android.view.GestureDetector;
 import android.view.Gravity;
@@ -63,12 +66,10 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.text.Normalizer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.WeakHashMap;
 
 /**
  * A view that renders a virtual {@link LatinKeyboard}. It handles rendering of keys and
@@ -212,12 +213,15 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     // TODO this attribute should be gotten from Keyboard.
     private int mKeyboardVerticalGap;
 
-    // Key preview popup
-    protected TextView mPreviewText;
-    protected PopupWindow mPreviewPopup;
+    // Key preview popups, one per concurrently previewed key
+    /* package */ static final int PREVIEW_POOL_SIZE = 3;
+    private final ArrayList<PreviewSlot> mPreviewSlots = new ArrayList<PreviewSlot>(PREVIEW_POOL_SIZE);
+    private int mNextPreviewSlot;
+    // Last key index passed to showPreview(), per pointer id
+    private final SparseIntArray mPreviewKeyIndices = new SparseIntArray();
     protected int mPreviewTextSizeLarge;
     protected int[] mOffsetInWindow;
-    protected int mOldPreviewKeyIndex = NOT_A_KEY;
+    private final int[] mWindowLocation = new int[2];
     protected boolean mShowPreview = true;
     protected boolean mShowTouchPoints = true;
     protected int mPopupPreviewOffsetX;
@@ -236,10 +240,33 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     protected boolean mMiniKeyboardVisible;
     protected boolean mIsMiniKeyboard = false;
     protected SeamlessPopupDrawable mSeamlessPopupDrawable;
-    protected SeamlessPopupDrawable mPreviewPopupDrawable;
-    protected final WeakHashMap<Key, Keyboard> mMiniKeyboardCacheMain = new WeakHashMap<Key, Keyboard>();
-    protected final WeakHashMap<Key, Keyboard> mMiniKeyboardCacheShift = new WeakHashMap<Key, Keyboard>();
-    protected final WeakHashMap<Key, Keyboard> mMiniKeyboardCacheCaps = new WeakHashMap<Key, Keyboard>();
+    // Scratch state reused by showKey() so that showing a preview doesn't allocate.
+    private final Rect mPreviewPopupRect = new Rect();
+    private final Rect mPreviewKeyRect = new Rect();
+    private boolean mPreviewColorsResolved;
+    private int mPreviewKeyColor;
+    private int mPreviewModColor;
+    private int mPreviewStrokeColor;
+    // Measured preview content height (without padding) per label, one map per text size.
+    private final HashMap<String, Integer> mPreviewHeightCacheSmall = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mPreviewHeightCacheLarge = new HashMap<String, Integer>();
+    private float mPreviewHeightCacheTextSize;
+    // Popup keyboards are built ahead of time from an idle handler, one key per idle pass.
+    private static final int PREWARM_RETRY_DELAY = 200;
+    private int mPrewarmKeyIndex;
+    private boolean mTouchActive;
+    private final MessageQueue.IdleHandler mPopupPrewarmer = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (mTouchActive || mMiniKeyboardVisible) {
+                // Don't compete with touch handling, try again later.
+                mHandler.prewarmPopups(PREWARM_RETRY_DELAY);
+            } else if (prewarmNextPopupKeyboard()) {
+                mHandler.prewarmPopups(0);
+            }
+            return false;
+        }
+    };
     protected int mMiniKeyboardOriginX;
     protected int mMiniKeyboardOriginY;
     protected long mMiniKeyboardPopupTime;
@@ -284,11 +311,8 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     private final Rect mPadding;
     private final Rect mClipRegion = new Rect(0, 0, 0, 0);
     private int mViewWidth;
-    // This map caches key label text height in pixel as value and key label text size as map key.
-    private final HashMap<Integer, Integer> mTextHeightCache = new HashMap<Integer, Integer>();
-    // Distance from horizontal center of the key, proportional to key label text height.
-    private final float KEY_LABEL_VERTICAL_ADJUSTMENT_FACTOR = 0.55f;
-    private final String KEY_LABEL_HEIGHT_REFERENCE_CHAR = "H";
+    // Resolved label strings, text sizes and baselines per key and shift state.
+    private final KeyLabelLayoutCache mLabelLayoutCache = new KeyLabelLayoutCache();
     /* package */ static Method sSetRenderMode;
     private static int sPrevRenderMode = -1;
 
@@ -307,9 +331,15 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         private static final int MSG_DISMISS_PREVIEW = 2;
         private static final int MSG_REPEAT_KEY = 3;
         private static final int MSG_LONGPRESS_KEY = 4;
+        private static final int MSG_PREWARM_POPUPS = 5;
 
         private boolean mInKeyRepeat;
 
+        // The view may be inflated on a worker thread, see KeyboardSwitcher.
+        UIHandler() {
+            super(Looper.getMainLooper());
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -317,7 +347,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
                     showKey(msg.arg1, (PointerTracker)msg.obj);
                     break;
                 case MSG_DISMISS_PREVIEW:
-                    mPreviewPopup.dismiss();
+                    dismissPreviewSlot((PreviewSlot)msg.obj);
                     break;
                 case MSG_REPEAT_KEY: {
                     final PointerTracker tracker = (PointerTracker)msg.obj;
@@ -330,12 +360,26 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
                     openPopupIfRequired(msg.arg1, tracker);
                     break;
                 }
+                case MSG_PREWARM_POPUPS:
+                    getLooper().getQueue().addIdleHandler(mPopupPrewarmer);
+                    break;
             }
         }
 
+        public void prewarmPopups(long delay) {
+            removeMessages(MSG_PREWARM_POPUPS);
+            sendMessageDelayed(obtainMessage(MSG_PREWARM_POPUPS), delay);
+        }
+
+        public void cancelPrewarmPopups() {
+            removeMessages(MSG_PREWARM_POPUPS);
+            getLooper().getQueue().removeIdleHandler(mPopupPrewarmer);
+        }
+
         public void popupPreview(long delay, int keyIndex, PointerTracker tracker) {
-            removeMessages(MSG_POPUP_PREVIEW);
-            if (mPreviewPopup.isShowing() && mPreviewText.getVisibility() == VISIBLE) {
+            removeMessages(MSG_POPUP_PREVIEW, tracker);
+            final PreviewSlot slot = getPreviewSlot(tracker);
+            if (slot != null && slot.popup.isShowing() && slot.text.getVisibility() == VISIBLE) {
                 // Show right away, if it's already visible and finger is moving around
                 showKey(keyIndex, tracker);
             } else {
@@ -344,13 +388,19 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             }
         }
 
-        public void cancelPopupPreview() {
+        private void cancelPopupPreview() {
             removeMessages(MSG_POPUP_PREVIEW);
         }
 
-        public void dismissPreview(long delay) {
-            if (mPreviewPopup.isShowing()) {
-                sendMessageDelayed(obtainMessage(MSG_DISMISS_PREVIEW), delay);
+        public void cancelPopupPreview(PointerTracker tracker) {
+            removeMessages(MSG_POPUP_PREVIEW, tracker);
+        }
+
+        public void dismissPreview(long delay, PointerTracker tracker) {
+            for (PreviewSlot slot : mPreviewSlots) {
+                if (slot.tracker == tracker && slot.popup.isShowing()) {
+                    sendMessageDelayed(obtainMessage(MSG_DISMISS_PREVIEW, slot), delay);
+                }
             }
         }
 
@@ -358,6 +408,10 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             removeMessages(MSG_DISMISS_PREVIEW);
         }
 
+        public void cancelDismissPreview(PreviewSlot slot) {
+            removeMessages(MSG_DISMISS_PREVIEW, slot);
+        }
+
         public void startKeyRepeatTimer(long delay, int keyIndex, PointerTracker tracker) {
             mInKeyRepeat = true;
             sendMessageDelayed(obtainMessage(MSG_REPEAT_KEY, keyIndex, 0, tracker), delay);
@@ -390,6 +444,37 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             cancelKeyTimers();
             cancelPopupPreview();
             cancelDismissPreview();
+            cancelPrewarmPopups();
+        }
+    }
+
+    /**
+     * One pre-inflated key preview window. A slot is owned by the pointer whose key it is
+     * showing until it is dismissed, and remembers the key size it was last laid out for so
+     * that keys of the same size class can reuse it without a resize.
+     */
+    static class PreviewSlot {
+        final PopupWindow popup;
+        final TextView text;
+        final SeamlessPopupDrawable drawable;
+        PointerTracker tracker;
+        int keyIndex = NOT_A_KEY;
+        int keyWidth;
+        int keyHeight;
+        // Last geometry passed to the popup, to skip redundant updates.
+        int lastX;
+        int lastY;
+        int lastWidth;
+        int lastHeight;
+
+        PreviewSlot(PopupWindow popup, TextView text, SeamlessPopupDrawable drawable) {
+            this.popup = popup;
+            this.text = text;
+            this.drawable = drawable;
+        }
+
+        boolean matchesSizeClass(Key key) {
+            return keyWidth == key.width && keyHeight == key.height;
         }
     }
 
@@ -482,13 +567,11 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         }
     }
     
-    public LatinKeyboardBaseView(Context context, AttributeSet attrs) {
-        this(context, attrs, R.attr.keyboardViewStyle);
-    }
-
-    public LatinKeyboardBaseView(Context context, AttributeSet attrs, int defStyle) {
-        super(context, attrs, defStyle);
-
+    /**
+     * Returns the key typeface for the font preference, loading it if the preference
+     * changed. May be called on any thread.
+     */
+    private static synchronized Typeface loadTypeface(Context context) {
         // Load font preference
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         String fontPref = prefs.getString("pref_keyboard_font", "0");
@@ -519,6 +602,31 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             }
             sCurrentFontMode = fontMode;
         }
+        return sCustomTypeface;
+    }
+
+    /**
+     * Loads the font and theme drawables a view inflated with the given themed context
+     * will use, so that constructing it on the UI thread afterwards mostly hits caches.
+     * Doesn't create any views, may be called on any thread.
+     */
+    /* package */ static void preloadResources(Context themeContext) {
+        loadTypeface(themeContext);
+        TypedArray a = themeContext.obtainStyledAttributes(null,
+                R.styleable.LatinKeyboardBaseView, R.attr.keyboardViewStyle,
+                R.style.LatinKeyboardBaseView);
+        a.getDrawable(R.styleable.LatinKeyboardBaseView_keyBackground);
+        a.recycle();
+    }
+
+    public LatinKeyboardBaseView(Context context, AttributeSet attrs) {
+        this(context, attrs, R.attr.keyboardViewStyle);
+    }
+
+    public LatinKeyboardBaseView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        final Typeface typeface = loadTypeface(context);
 
         if (!isInEditMode())
             Log.i(TAG, "Creating new LatinKeyboardBaseView " + this);
@@ -565,13 +673,13 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
                 int textStyle = a.getInt(attr, 0);
                 switch (textStyle) {
                     case 0:
-                        mKeyTextStyle = sCustomTypeface;
+                        mKeyTextStyle = typeface;
                         break;
                     case 1:
-                        mKeyTextStyle = Typeface.create(sCustomTypeface, Typeface.BOLD);
+                        mKeyTextStyle = Typeface.create(typeface, Typeface.BOLD);
                         break;
                     default:
-                        mKeyTextStyle = Typeface.create(sCustomTypeface, textStyle);
+                        mKeyTextStyle = Typeface.create(typeface, textStyle);
                         break;
                 }
             } else if (attr == R.styleable.LatinKeyboardBaseView_symbolColorScheme) {
@@ -579,7 +687,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             }
         }
         if (mKeyTextStyle == null) {
-            mKeyTextStyle = Typeface.create(sCustomTypeface, Typeface.BOLD);
+            mKeyTextStyle = Typeface.create(typeface, Typeface.BOLD);
         }
 
         final Resources res = getResources();
@@ -600,7 +708,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         mPaintHint.setAntiAlias(true);
         mPaintHint.setTextAlign(Align.RIGHT);
         mPaintHint.setAlpha(255);
-        mPaintHint.setTypeface(Typeface.create(sCustomTypeface, Typeface.BOLD));
+        mPaintHint.setTypeface(Typeface.create(typeface, Typeface.BOLD));
 
         mPadding = new Rect(0, 0, 0, 0);
         mKeyBackground.getPadding(mPadding);
@@ -652,7 +760,8 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         };
 
         final boolean ignoreMultitouch = true;
-        mGestureDetector = new GestureDetector(getContext(), listener, null, ignoreMultitouch);
+        // Pass our handler so that the detector doesn't bind to the inflating thread.
+        mGestureDetector = new GestureDetector(getContext(), listener, mHandler, ignoreMultitouch);
         mGestureDetector.setIsLongpressEnabled(false);
 
         mHasDistinctMultitouch = context.getPackageManager()
@@ -697,13 +806,13 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         //Log.i(TAG, "setKeyboard(" + keyboard + ") for " + this);
         // Remove any pending messages, except dismissing preview
         mHandler.cancelKeyTimers();
-        mHandler.cancelPopupPreview();
         mKeyboard = keyboard;
         // Disable correctionX and correctionY, it doesn't seem to work as intended.
         // mKeys = mKeyDetector.setKeyboard(keyboard, -getPaddingLeft(),-getPaddingTop() + mVerticalCorrection);
         mKeys = mKeyDetector.setKeyboard(keyboard, 0, 0);
         mKeyboardVerticalGap = (int)getResources().getDimension(R.dimen.key_bottom_gap);
         for (PointerTracker tracker : mPointerTrackers) {
+            mHandler.cancelPopupPreview(tracker);
             tracker.setKeyboard(mKeys, mKeyHysteresisDistance);
         }
         mLabelScale = LatinIME.sKeyboardSettings.labelScalePref;
@@ -713,9 +822,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         mKeyboardChanged = true;
         invalidateAllKeys();
         computeProximityThreshold(keyboard);
-        mMiniKeyboardCacheMain.clear();
-        mMiniKeyboardCacheShift.clear();
-        mMiniKeyboardCacheCaps.clear();
+        startPopupPrewarm();
         setRenderModeIfPossible(LatinIME.sKeyboardSettings.renderMode);
         mIgnoreMove = true;
     }
@@ -748,6 +855,8 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             if (mKeyboard.setShiftState(shiftState)) {
                 // The whole keyboard probably needs to be redrawn
                 invalidateAllKeys();
+                // Popup contents depend on the shift state
+                startPopupPrewarm();
                 return true;
             }
         }
@@ -827,7 +936,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     public void setPopupOffset(int x, int y) {
         mPopupPreviewOffsetX = x;
         mPopupPreviewOffsetY = y;
-        if (mPreviewPopup != null) mPreviewPopup.dismiss();
+        dismissAllPreviewSlots();
     }
 
     /**
@@ -899,29 +1008,25 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         super.onDraw(canvas);
         //Log.i(TAG, "onDraw called " + canvas.getClipBounds());
         mCanvas = canvas;
+        final LatinIMEUtil.FrameStats frameStats = LatinIMEUtil.FrameStats.getInstance();
+        final boolean timeDraw = !mIsMiniKeyboard && !frameStats.isUsingFrameMetrics();
+        final long drawStart = timeDraw ? System.nanoTime() : 0;
         if (mDrawPending || mBuffer == null || mKeyboardChanged) {
             onBufferDraw(canvas);
         }
         if (mBuffer != null) canvas.drawBitmap(mBuffer, 0, 0, null);
+        if (timeDraw) {
+            // No FrameMetrics for this window, fall back to timing the draw itself
+            frameStats.recordFrame(System.nanoTime() - drawStart);
+        }
     }
     
-    private void drawDeadKeyLabel(Canvas canvas, String hint, int x, float baseline, Paint paint) {
-        char c = hint.charAt(0);
-        String accent = DeadAccentSequence.getSpacing(c);
-        canvas.drawText(Keyboard.DEAD_KEY_PLACEHOLDER_STRING, x, baseline, paint);
-        canvas.drawText(accent, x, baseline, paint);
-    }
-
-    private int getLabelHeight(Paint paint, int labelSize) {
-        Integer labelHeightValue = mTextHeightCache.get(labelSize);
-        if (labelHeightValue != null) {
-            return labelHeightValue;
+    private void drawLabel(Canvas canvas, String label, String deadKeyAccent, int x, float baseline, Paint paint) {
+        if (deadKeyAccent != null) {
+            canvas.drawText(Keyboard.DEAD_KEY_PLACEHOLDER_STRING, x, baseline, paint);
+            canvas.drawText(deadKeyAccent, x, baseline, paint);
         } else {
-            Rect textBounds = new Rect();
-            paint.getTextBounds(KEY_LABEL_HEIGHT_REFERENCE_CHAR, 0, 1, textBounds);
-            int labelHeight = textBounds.height();
-            mTextHeightCache.put(labelSize, labelHeight);
-            return labelHeight;
+            canvas.drawText(label, x, baseline, paint);
         }
     }
 
@@ -929,6 +1034,8 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         //Log.i(TAG, "onBufferDraw called");
         if (/*mBuffer == null ||*/ mKeyboardChanged) {
             mKeyboard.setKeyboardWidth(mViewWidth);
+            // Key sizes may have changed, drop the cached label layout.
+            mLabelLayoutCache.clear();
 //            if (mBuffer == null || mKeyboardChanged &&
 //                    (mBuffer.getWidth() != getWidth() || mBuffer.getHeight() != getHeight())) {
 //                // Make sure our bitmap is at least 1x1
@@ -984,21 +1091,14 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         //canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
         final int keyCount = keys.length;
 
-        // Scale the key labels based on the median key size.
-        List<Integer> keyWidths = new ArrayList<Integer>();
-        List<Integer> keyHeights = new ArrayList<Integer>();
-        for (int i = 0; i < keyCount; i++) {
-            final Key key = keys[i];
-            keyWidths.add(key.width);
-            keyHeights.add(key.height);
+        // Label sizes are derived from the median key size, recomputed only for a new key set.
+        final KeyLabelLayoutCache labelCache = mLabelLayoutCache;
+        if (labelCache.setKeys(keys, mLabelScale)) {
+            mKeyTextSize = labelCache.getKeyTextSize();
         }
-        Collections.sort(keyWidths);
-        Collections.sort(keyHeights);
-        int medianKeyWidth = keyWidths.get(keyCount / 2);
-        int medianKeyHeight = keyHeights.get(keyCount / 2);
-        // Use 60% of the smaller of width or height. This is kind of arbitrary.
-        mKeyTextSize = Math.min(medianKeyHeight * 6 / 10, medianKeyWidth * 6 / 10);
-        mLabelTextSize = mKeyTextSize * 3 / 4;
+        final int shiftState = mKeyboard.getShiftState();
+        final boolean hints7Bit = showHints7Bit();
+        final boolean hintsAll = showHintsAll();
 
         int keysDrawn = 0;
         for (int i = 0; i < keyCount; i++) {
@@ -1016,7 +1116,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             keysDrawn++;
             
             // Portal Transition: Dim the key if it is currently being previewed
-            boolean isPreviewed = (i == mOldPreviewKeyIndex && mPreviewPopup != null && mPreviewPopup.isShowing());
+            boolean isPreviewed = isKeyPreviewed(i);
 
             paint.setColor(key.isCursor ? mKeyCursorColor : mKeyTextColor);
             paint.setAlpha(isPreviewed ? 60 : 255);
@@ -1024,9 +1124,6 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             int[] drawableState = key.getCurrentDrawableState();
             keyBackground.setState(drawableState);
 
-            // Switch the character to uppercase if shift is pressed
-            String label = key.getCaseLabel();
-
             float yscale = 1.0f;
             final Rect bounds = keyBackground.getBounds();
             if (key.width != bounds.right || key.height != bounds.bottom) {
@@ -1069,69 +1166,39 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
 
             if (yscale != 1.0f)  canvas.restore();
 
+            paint.setTypeface(mKeyTextStyle);
+            paint.setFakeBoldText(key.isCursor);
+            final KeyLabelLayoutCache.Entry layout = labelCache.get(
+                    i, key, shiftState, paint, paintHint, padding, hints7Bit, hintsAll);
+            final String label = layout.label;
+
             boolean shouldDrawIcon = true;
             if (label != null) {
-                // For characters, use large font. For labels like "Done", use small font.
-                final int labelSize;
-                if (label.length() > 1 && key.codes.length < 2) {
-                    //Log.i(TAG, "mLabelTextSize=" + mLabelTextSize + " LatinIME.sKeyboardSettings.labelScale=" + LatinIME.sKeyboardSettings.labelScale);
-                    labelSize = (int)(mLabelTextSize * mLabelScale);
-                } else {
-                    labelSize = (int)(mKeyTextSize * mLabelScale);
-                }
-                paint.setTypeface(mKeyTextStyle);
-                paint.setFakeBoldText(key.isCursor);
-                paint.setTextSize(labelSize);
-
-                final int labelHeight = getLabelHeight(paint, labelSize);
+                paint.setTextSize(layout.labelSize);
 
                 // Draw a drop shadow for the text
                 paint.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
 
                 // Draw hint label (if present) behind the main key
-                String hint = key.getHintLabel(showHints7Bit(), showHintsAll());
-                if (!hint.equals("") && !(key.isShifted() && key.shiftLabel != null && hint.charAt(0) == key.shiftLabel.charAt(0))) {
-                    int hintTextSize = (int)(mKeyTextSize * 0.6 * mLabelScale);
-                    paintHint.setTextSize(hintTextSize);
+                if (layout.hint != null) {
+                    paintHint.setTextSize(layout.hintSize);
                     paintHint.setAlpha(100); // Fainter hints
-
-                    final int hintLabelHeight = getLabelHeight(paintHint, hintTextSize);
-                    int x = key.width - padding.right;
-                    int baseline = padding.top + hintLabelHeight * 12/10;
-                    if (Character.getType(hint.charAt(0)) == Character.NON_SPACING_MARK) {
-                        drawDeadKeyLabel(canvas, hint, x, baseline, paintHint);
-                    } else {
-                        canvas.drawText(hint, x, baseline, paintHint);
-                    }
+                    drawLabel(canvas, layout.hint, layout.hintAccent,
+                            layout.hintX, layout.hintBaseline, paintHint);
                 }
 
                 // Draw alternate hint label (if present) behind the main key
-                String altHint = key.getAltHintLabel(showHints7Bit(), showHintsAll());
-                if (!altHint.equals("")) {
-                    int hintTextSize = (int)(mKeyTextSize * 0.6 * mLabelScale);
-                    paintHint.setTextSize(hintTextSize);
+                if (layout.altHint != null) {
+                    paintHint.setTextSize(layout.hintSize);
                     paintHint.setAlpha(100); // Fainter hints
-
-                    final int hintLabelHeight = getLabelHeight(paintHint, hintTextSize);
-                    int x = key.width - padding.right;
-                    int baseline = padding.top + hintLabelHeight * (hint.equals("") ? 12 : 26)/10;
-                    if (Character.getType(altHint.charAt(0)) == Character.NON_SPACING_MARK) {
-                        drawDeadKeyLabel(canvas, altHint, x, baseline, paintHint);
-                    } else {
-                        canvas.drawText(altHint, x, baseline, paintHint);
-                    }
+                    drawLabel(canvas, layout.altHint, layout.altHintAccent,
+                            layout.hintX, layout.altHintBaseline, paintHint);
                 }
 
                 // Draw main key label
-                final int centerX = (key.width + padding.left - padding.right) / 2;
-                final int centerY = (key.height + padding.top - padding.bottom) / 2;
-                final float baseline = centerY
-                        + labelHeight * KEY_LABEL_VERTICAL_ADJUSTMENT_FACTOR;
-                if (key.isDeadKey()) {
-                    drawDeadKeyLabel(canvas, label, centerX, baseline, paint);
-                } else {
-                    canvas.drawText(label, centerX, baseline, paint);
-                }
+                final int centerX = layout.labelX;
+                final float baseline = layout.labelBaseline;
+                drawLabel(canvas, label, layout.labelAccent, centerX, baseline, paint);
                 if (key.isCursor) {
                     // poor man's bold - FIXME
                     // Turn off drop shadow
@@ -1217,6 +1284,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
             canvas.translate(-key.x - kbdPaddingLeft, -key.y - kbdPaddingTop);
         }
         //Log.i(TAG, "keysDrawn=" + keysDrawn);
+        LatinIMEUtil.FrameStats.getInstance().addKeysDrawn(keysDrawn);
         mInvalidatedKey = null;
         // Overlay a dark rectangle to dim the keyboard
         if (mMiniKeyboardVisible) {
@@ -1256,11 +1324,22 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     }
 
     public void showPreview(int keyIndex, PointerTracker tracker) {
-        int oldKeyIndex = mOldPreviewKeyIndex;
-        mOldPreviewKeyIndex = keyIndex;
+        if (tracker == null) {
+            // Hide the previews of all pointers
+            for (PointerTracker t : mPointerTrackers) {
+                updatePreview(NOT_A_KEY, t, true);
+            }
+        } else {
+            updatePreview(keyIndex, tracker, false);
+        }
+    }
+
+    private void updatePreview(int keyIndex, PointerTracker tracker, boolean hideAll) {
+        int oldKeyIndex = mPreviewKeyIndices.get(tracker.mPointerId, NOT_A_KEY);
+        mPreviewKeyIndices.put(tracker.mPointerId, keyIndex);
 
         // Selective suppression: No popup for modifiers or functional keys
-        if (tracker != null && keyIndex != NOT_A_KEY) {
+        if (keyIndex != NOT_A_KEY) {
             Keyboard.Key key = tracker.getKey(keyIndex);
             if (key != null && (key.modifier || (key.label != null && key.label.length() > 1))) {
                 keyIndex = NOT_A_KEY;
@@ -1272,7 +1351,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         // We should re-draw popup preview when 1) we need to hide the preview, 2) we will show
         // the space key preview and 3) pointer moves off the space key to other letter key, we
         // should hide the preview of the previous key.
-        final boolean hidePreviewOrShowSpaceKeyPreview = (tracker == null)
+        final boolean hidePreviewOrShowSpaceKeyPreview = hideAll
                 || tracker.isSpaceKey(keyIndex) || tracker.isSpaceKey(oldKeyIndex);
         // If key changed and preview is on or the key is space (language switch is enabled)
         if (oldKeyIndex != keyIndex
@@ -1282,9 +1361,9 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
                 if (oldKeyIndex != NOT_A_KEY && oldKeyIndex < mKeys.length) {
                     invalidateKey(mKeys[oldKeyIndex]);
                 }
-                mHandler.cancelPopupPreview();
-                mHandler.dismissPreview(mDelayAfterPreview);
-            } else if (tracker != null) {
+                mHandler.cancelPopupPreview(tracker);
+                mHandler.dismissPreview(mDelayAfterPreview, tracker);
+            } else {
                 int delay = mShowPreview ? mDelayBeforePreview : mDelayBeforeSpacePreview;
                 mHandler.popupPreview(delay, keyIndex, tracker);
             }
@@ -1296,78 +1375,84 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         if (key == null)
             return;
 
+        final PreviewSlot slot = acquirePreviewSlot(tracker, key);
+        if (slot == null)
+            return;
+        mHandler.cancelDismissPreview(slot);
+        final TextView previewText = slot.text;
+        final PopupWindow previewPopup = slot.popup;
+        final SeamlessPopupDrawable previewDrawable = slot.drawable;
+
         // Invalidate old and new keys for Portal Transition (dimming)
-        if (mOldPreviewKeyIndex != NOT_A_KEY && mOldPreviewKeyIndex < mKeys.length) {
-            invalidateKey(mKeys[mOldPreviewKeyIndex]);
-        }
+        if (slot.keyIndex != NOT_A_KEY && slot.keyIndex != keyIndex
+                && slot.keyIndex < mKeys.length) {
+            invalidateKey(mKeys[slot.keyIndex]);
+        }
+        slot.tracker = tracker;
+        slot.keyIndex = keyIndex;
+        slot.keyWidth = key.width;
+        slot.keyHeight = key.height;
         invalidateKey(key);
 
-        // Initialize SeamlessPopupDrawable if needed
-        if (mPreviewPopupDrawable == null) {
-            mPreviewPopupDrawable = new SeamlessPopupDrawable(getContext());
-            mPreviewPopupDrawable.setStrokeWidth(2.0f * getResources().getDisplayMetrics().density);
-            mPreviewPopupDrawable.setCornerRadius(4.0f * getResources().getDisplayMetrics().density);
-            mPreviewPopupDrawable.setKeyCornerRadius(4.0f * getResources().getDisplayMetrics().density);
-            mPreviewText.setBackgroundDrawable(mPreviewPopupDrawable);
+        // Update colors for the current key. The view is re-inflated on theme changes, so
+        // the theme colors only need to be resolved once.
+        if (!mPreviewColorsResolved) {
+            resolvePreviewColors();
         }
-
-        // Update colors for the current key
-        TypedValue typedValue = new TypedValue();
-        Resources.Theme theme = getContext().getTheme();
-
-        int keyColor = 0xFF1a1b26; // Default Storm
-        // Use kbdColorMod for modifiers, kbdColorAlpha for standard keys
-        int attrId = key.modifier ? R.attr.kbdColorMod : R.attr.kbdColorAlpha;
-
-        if (theme.resolveAttribute(attrId, typedValue, true)) {
-            keyColor = typedValue.data;
-        } else if (theme.resolveAttribute(R.attr.kbdColorBase, typedValue, true)) {
-             // Fallback to base if specific key color not found
-             keyColor = typedValue.data;
-        }
-
-        int strokeColor = 0xFF414868; // Default
-        if (theme.resolveAttribute(R.attr.kbdColorPopup, typedValue, true)) {
-            strokeColor = typedValue.data;
-        }
-
-        mPreviewPopupDrawable.setColors(keyColor, strokeColor);
+        previewDrawable.setColors(key.modifier ? mPreviewModColor : mPreviewKeyColor,
+                mPreviewStrokeColor);
 
         // Dynamically set stroke width (0 for modifiers, 2dp for others)
         float density = getResources().getDisplayMetrics().density;
-        mPreviewPopupDrawable.setStrokeWidth(shouldDrawStroke(key) ? 2.0f * density : 0);
+        previewDrawable.setStrokeWidth(shouldDrawStroke(key) ? 2.0f * density : 0);
 
         // Adjust padding to make room for the key replica at the bottom
         // Original padding from XML is roughly 6dp.
-        int padding = (int)(6 * getResources().getDisplayMetrics().density);
-        mPreviewText.setPadding(padding, padding, padding, padding + key.height);
+        int padding = (int)(6 * density);
+        previewText.setPadding(padding, padding, padding, padding + key.height);
 
         //Log.i(TAG, "showKey() for " + this);
         // Should not draw hint icon in key preview
         Drawable icon = key.icon;
+        final int measuredHeight;
         if (icon != null && TextUtils.isEmpty(key.label) && !shouldDrawLabelAndIcon(key)) {
-            mPreviewText.setCompoundDrawables(null, null, null,
+            previewText.setCompoundDrawables(null, null, null,
                     key.iconPreview != null ? key.iconPreview : icon);
-            mPreviewText.setText(null);
+            previewText.setText(null);
+            measuredHeight = measurePreviewText(previewText);
         } else {
-            mPreviewText.setCompoundDrawables(null, null, null, null);
-            mPreviewText.setText(key.getCaseLabel());
+            previewText.setCompoundDrawables(null, null, null, null);
+            final String label = key.getCaseLabel();
+            previewText.setText(label);
+            final HashMap<String, Integer> heightCache;
             if (key.label.length() > 1 && key.codes.length < 2) {
-                mPreviewText.setTextSize(TypedValue.COMPLEX_UNIT_PX, mKeyTextSize);
+                previewText.setTextSize(TypedValue.COMPLEX_UNIT_PX, mKeyTextSize);
+                heightCache = mPreviewHeightCacheSmall;
             } else {
-                mPreviewText.setTextSize(TypedValue.COMPLEX_UNIT_PX, mPreviewTextSizeLarge);
+                previewText.setTextSize(TypedValue.COMPLEX_UNIT_PX, mPreviewTextSizeLarge);
+                heightCache = mPreviewHeightCacheLarge;
             }
-            mPreviewText.setTypeface(mKeyTextStyle);
+            previewText.setTypeface(mKeyTextStyle);
+            if (mPreviewHeightCacheTextSize != mKeyTextSize) {
+                mPreviewHeightCacheSmall.clear();
+                mPreviewHeightCacheLarge.clear();
+                mPreviewHeightCacheTextSize = mKeyTextSize;
+            }
+            final int verticalPadding = previewText.getPaddingTop() + previewText.getPaddingBottom();
+            Integer contentHeight = heightCache.get(label);
+            if (contentHeight == null) {
+                contentHeight = measurePreviewText(previewText) - verticalPadding;
+                heightCache.put(label, contentHeight);
+            }
+            measuredHeight = contentHeight + verticalPadding;
         }
-        mPreviewText.measure(MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED),
-                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
 
         // Tokyo Night: Force popup width to match the key width for single-key previews
         // to create a seamless vertical "extrusion" look.
         int popupWidth = key.width;
-        final int popupHeight = Math.max(mPreviewText.getMeasuredHeight(), mPreviewHeight);
+        final int popupHeight = Math.max(measuredHeight, mPreviewHeight);
 
-        LayoutParams lp = mPreviewText.getLayoutParams();
+        LayoutParams lp = previewText.getLayoutParams();
         if (lp != null) {
             lp.width = popupWidth;
             lp.height = popupHeight;
@@ -1386,16 +1471,14 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         int popupPreviewX = key.x;
         int popupPreviewY = key.y + key.height - popupHeight;
 
-        mHandler.cancelDismissPreview();
         if (mOffsetInWindow == null) {
             mOffsetInWindow = new int[2];
         }
         getLocationInWindow(mOffsetInWindow);
         mOffsetInWindow[0] += mPopupPreviewOffsetX; // Offset may be zero
         mOffsetInWindow[1] += mPopupPreviewOffsetY; // Offset may be zero
-        int[] windowLocation = new int[2];
-        getLocationOnScreen(windowLocation);
-        mWindowY = windowLocation[1];
+        getLocationOnScreen(mWindowLocation);
+        mWindowY = mWindowLocation[1];
 
         popupPreviewX += mOffsetInWindow[0];
         popupPreviewY += mOffsetInWindow[1];
@@ -1413,36 +1496,144 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         }
 
         // Configure SeamlessPopupDrawable Geometry
-        if (mPreviewPopupDrawable != null) {
-            int contentHeight = popupHeight - key.height;
-            // Ensure contentHeight is at least something reasonable
-            if (contentHeight < 0) contentHeight = 0;
-
-            Rect popupRect = new Rect(0, 0, popupWidth, contentHeight);
-            Rect keyRect = new Rect(0, contentHeight, popupWidth, popupHeight);
-
-            mPreviewPopupDrawable.setGeometry(
-                keyRect,
-                popupRect,
-                key.height,
-                contentHeight,
-                10 * density, // Neck height
-                keyRect.top,
-                popupRect.top
-            );
-        }
-
-        if (mPreviewPopup.isShowing()) {
-            mPreviewPopup.update(popupPreviewX, popupPreviewY, popupWidth, popupHeight);
+        int contentHeight = popupHeight - key.height;
+        // Ensure contentHeight is at least something reasonable
+        if (contentHeight < 0) contentHeight = 0;
+
+        final Rect popupRect = mPreviewPopupRect;
+        final Rect keyRect = mPreviewKeyRect;
+        popupRect.set(0, 0, popupWidth, contentHeight);
+        keyRect.set(0, contentHeight, popupWidth, popupHeight);
+
+        previewDrawable.setGeometry(
+            keyRect,
+            popupRect,
+            key.height,
+            contentHeight,
+            10 * density, // Neck height
+            keyRect.top,
+            popupRect.top
+        );
+
+        if (previewPopup.isShowing()) {
+            if (popupPreviewX != slot.lastX || popupPreviewY != slot.lastY
+                    || popupWidth != slot.lastWidth || popupHeight != slot.lastHeight) {
+                previewPopup.update(popupPreviewX, popupPreviewY, popupWidth, popupHeight);
+            }
         } else {
-            mPreviewPopup.setWidth(popupWidth);
-            mPreviewPopup.setHeight(popupHeight);
-            mPreviewPopup.showAtLocation(mMiniKeyboardParent, Gravity.NO_GRAVITY,
+            previewPopup.setWidth(popupWidth);
+            previewPopup.setHeight(popupHeight);
+            previewPopup.showAtLocation(mMiniKeyboardParent, Gravity.NO_GRAVITY,
                     popupPreviewX, popupPreviewY);
         }
+        slot.lastX = popupPreviewX;
+        slot.lastY = popupPreviewY;
+        slot.lastWidth = popupWidth;
+        slot.lastHeight = popupHeight;
         // Record popup preview position to display mini-keyboard later at the same positon
         mPopupPreviewDisplayedY = popupPreviewY;
-        mPreviewText.setVisibility(VISIBLE);
+        previewText.setVisibility(VISIBLE);
+    }
+
+    private static int measurePreviewText(TextView previewText) {
+        previewText.measure(MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        return previewText.getMeasuredHeight();
+    }
+
+    /**
+     * Adds a pre-inflated preview window to the pool used by {@link #showKey}.
+     */
+    /* package */ void addPreviewPopup(PopupWindow popup, TextView text) {
+        final float density = getResources().getDisplayMetrics().density;
+        SeamlessPopupDrawable drawable = new SeamlessPopupDrawable(getContext());
+        drawable.setStrokeWidth(2.0f * density);
+        drawable.setCornerRadius(4.0f * density);
+        drawable.setKeyCornerRadius(4.0f * density);
+        text.setBackgroundDrawable(drawable);
+        mPreviewSlots.add(new PreviewSlot(popup, text, drawable));
+    }
+
+    private PreviewSlot getPreviewSlot(PointerTracker tracker) {
+        final ArrayList<PreviewSlot> slots = mPreviewSlots;
+        for (int i = 0, count = slots.size(); i < count; i++) {
+            final PreviewSlot slot = slots.get(i);
+            if (slot.tracker == tracker) return slot;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the preview window to use for the given pointer: the one it already owns, else a
+     * free one laid out for the same key size, else any free one, else the next one in
+     * round-robin order.
+     */
+    private PreviewSlot acquirePreviewSlot(PointerTracker tracker, Key key) {
+        final ArrayList<PreviewSlot> slots = mPreviewSlots;
+        final int count = slots.size();
+        if (count == 0) return null;
+        PreviewSlot owned = getPreviewSlot(tracker);
+        if (owned != null) return owned;
+
+        int freeIndex = -1;
+        for (int i = 0; i < count; i++) {
+            final int index = (mNextPreviewSlot + i) % count;
+            final PreviewSlot slot = slots.get(index);
+            if (slot.tracker != null) continue;
+            if (slot.matchesSizeClass(key)) {
+                freeIndex = index;
+                break;
+            }
+            if (freeIndex < 0) freeIndex = index;
+        }
+        final int index = freeIndex >= 0 ? freeIndex : mNextPreviewSlot % count;
+        mNextPreviewSlot = (index + 1) % count;
+        return slots.get(index);
+    }
+
+    private boolean isKeyPreviewed(int keyIndex) {
+        final ArrayList<PreviewSlot> slots = mPreviewSlots;
+        for (int i = 0, count = slots.size(); i < count; i++) {
+            final PreviewSlot slot = slots.get(i);
+            if (slot.keyIndex == keyIndex && slot.popup.isShowing()) return true;
+        }
+        return false;
+    }
+
+    private void dismissPreviewSlot(PreviewSlot slot) {
+        slot.popup.dismiss();
+        if (slot.keyIndex != NOT_A_KEY && mKeys != null && slot.keyIndex < mKeys.length) {
+            invalidateKey(mKeys[slot.keyIndex]);
+        }
+        slot.tracker = null;
+        slot.keyIndex = NOT_A_KEY;
+    }
+
+    private void dismissAllPreviewSlots() {
+        for (PreviewSlot slot : mPreviewSlots) {
+            dismissPreviewSlot(slot);
+        }
+    }
+
+    private void resolvePreviewColors() {
+        TypedValue typedValue = new TypedValue();
+        Resources.Theme theme = getContext().getTheme();
+
+        int baseColor = 0xFF1a1b26; // Default Storm
+        if (theme.resolveAttribute(R.attr.kbdColorBase, typedValue, true)) {
+            baseColor = typedValue.data;
+        }
+        // Use kbdColorMod for modifiers, kbdColorAlpha for standard keys, falling back to base
+        mPreviewModColor = theme.resolveAttribute(R.attr.kbdColorMod, typedValue, true)
+                ? typedValue.data : baseColor;
+        mPreviewKeyColor = theme.resolveAttribute(R.attr.kbdColorAlpha, typedValue, true)
+                ? typedValue.data : baseColor;
+
+        mPreviewStrokeColor = 0xFF414868; // Default
+        if (theme.resolveAttribute(R.attr.kbdColorPopup, typedValue, true)) {
+            mPreviewStrokeColor = typedValue.data;
+        }
+        mPreviewColorsResolved = true;
     }
 
     /**
@@ -1587,23 +1778,35 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
     }
 
     private Keyboard getLongPressKeyboard(Key popupKey) {
-        final WeakHashMap<Key, Keyboard> cache;
-        if (popupKey.isDistinctCaps()) {
-            cache = mMiniKeyboardCacheCaps;
-        } else if (popupKey.isShifted()) {
-            cache = mMiniKeyboardCacheShift;
-        } else {
-            cache = mMiniKeyboardCacheMain;
-        }
-        Keyboard kbd = cache.get(popupKey);
-        if (kbd == null) {
-            kbd = popupKey.getPopupKeyboard(getContext(), getPaddingLeft() + getPaddingRight());
-            if (kbd != null) cache.put(popupKey, kbd);
-        }
+        // Built popup keyboards are shared across layouts through PopupKeyboardCache.
+        Keyboard kbd = popupKey.getPopupKeyboard(getContext(), getPaddingLeft() + getPaddingRight());
         //Log.i(TAG, "getLongPressKeyboard returns " + kbd + " for " + popupKey);
         return kbd;
     }
 
+    private void startPopupPrewarm() {
+        mHandler.cancelPrewarmPopups();
+        mPrewarmKeyIndex = 0;
+        if (mPopupLayout == 0 || mIsMiniKeyboard || mKeys == null) return;
+        mHandler.prewarmPopups(PREWARM_RETRY_DELAY);
+    }
+
+    /**
+     * Builds the long-press keyboard for the next key of the current layout and shift state.
+     * @return true if there are more keys left to prewarm
+     */
+    private boolean prewarmNextPopupKeyboard() {
+        final Key[] keys = mKeys;
+        if (keys == null) return false;
+        while (mPrewarmKeyIndex < keys.length) {
+            final Key key = keys[mPrewarmKeyIndex++];
+            if (key.popupCharacters == null && key.popupResId == 0) continue;
+            getLongPressKeyboard(key);
+            return mPrewarmKeyIndex < keys.length;
+        }
+        return false;
+    }
+
     /**
      * Called when a key is long pressed. By default this will open any popup keyboard associated
      * with this key through the attributes popupLayout and popupCharacters.
@@ -1878,6 +2081,11 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
 
     public boolean onTouchEvent(MotionEvent me, boolean continuing) {
         final int action = me.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            mTouchActive = true;
+        } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mTouchActive = false;
+        }
         final int pointerCount = me.getPointerCount();
         final int oldPointerCount = mOldPointerCount;
         mOldPointerCount = pointerCount;
@@ -2042,7 +2250,7 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
 
     public void closing() {
         Log.i(TAG, "closing " + this);
-        if (mPreviewPopup != null) mPreviewPopup.dismiss();
+        dismissAllPreviewSlots();
         mHandler.cancelAllMessages();
 
         dismissPopupKeyboard();
@@ -2056,9 +2264,6 @@ public class LatinKeyboardBaseView extends View implements PointerTracker.UIProx
         // for example if reducing the size of the main keyboard.
         //mBuffer = null;
         //mCanvas = null;
-        mMiniKeyboardCacheMain.clear();
-        mMiniKeyboardCacheShift.clear();
-        mMiniKeyboardCacheCaps.clear();
     }
 
     @Override
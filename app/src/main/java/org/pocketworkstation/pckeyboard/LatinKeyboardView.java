@@ -156,21 +156,23 @@ public class LatinKeyboardView extends LatinKeyboardBaseView {
         boolean clippingEnabled = (Build.VERSION.SDK_INT >= 28 /* Build.VERSION_CODES.P */);
 
         if (previewLayout != 0) {
-            mPreviewPopup = new PopupWindow(context);
-            if (!isInEditMode())
-                Log.i(TAG, "new mPreviewPopup " + mPreviewPopup + " from " + this);
-            mPreviewText = (TextView) inflate.inflate(previewLayout, null);
-            mPreviewText.setBackgroundDrawable(null); // Clear theme-inherited background
-            mPreviewText.setBackgroundResource(R.drawable.popup_tokyonight_dynamic);
-            if (android.os.Build.VERSION.SDK_INT >= 11) {
-                mPreviewText.setLayerType(android.view.View.LAYER_TYPE_SOFTWARE, null);
-            }
             mPreviewTextSizeLarge = (int) res.getDimension(R.dimen.key_preview_text_size_large);
-            mPreviewPopup.setContentView(mPreviewText);
-            mPreviewPopup.setBackgroundDrawable(new android.graphics.drawable.ColorDrawable(android.graphics.Color.TRANSPARENT));
-            mPreviewPopup.setTouchable(false);
-            mPreviewPopup.setAnimationStyle(R.style.KeyPreviewAnimation);
-            mPreviewPopup.setClippingEnabled(clippingEnabled);
+            // Pre-inflate a small pool so that chorded keys each get their own preview.
+            for (int i = 0; i < PREVIEW_POOL_SIZE; i++) {
+                PopupWindow previewPopup = new PopupWindow(context);
+                if (!isInEditMode())
+                    Log.i(TAG, "new previewPopup " + previewPopup + " from " + this);
+                TextView previewText = (TextView) inflate.inflate(previewLayout, null);
+                if (android.os.Build.VERSION.SDK_INT >= 11) {
+                    previewText.setLayerType(android.view.View.LAYER_TYPE_SOFTWARE, null);
+                }
+                previewPopup.setContentView(previewText);
+                previewPopup.setBackgroundDrawable(new android.graphics.drawable.ColorDrawable(android.graphics.Color.TRANSPARENT));
+                previewPopup.setTouchable(false);
+                previewPopup.setAnimationStyle(R.style.KeyPreviewAnimation);
+                previewPopup.setClippingEnabled(clippingEnabled);
+                addPreviewPopup(previewPopup, previewText);
+            }
         } else {
             mShowPreview = false;
         }
@@ -656,6 +658,10 @@ public class LatinKeyboardView extends LatinKeyboardBaseView {
             }
             c.drawLine(mLastX, 0, mLastX, getHeight(), mPaint);
             c.drawLine(0, mLastY, getWidth(), mLastY, mPaint);
+            // Frame time overlay
+            mPaint.setTextSize(12 * getResources().getDisplayMetrics().density);
+            c.drawText(LatinIMEUtil.FrameStats.getInstance().getSummary(),
+                    getPaddingLeft(), getPaddingTop() + mPaint.getTextSize(), mPaint);
         }
     }
 }
@@ -423,7 +423,7 @@ public class PointerTracker {
         if (DEBUG)
             debugLog("onUpEvent  :", x, y);
         mHandler.cancelKeyTimers();
-        mHandler.cancelPopupPreview();
+        mHandler.cancelPopupPreview(this);
         showKeyPreviewAndUpdateKey(NOT_A_KEY);
         mIsInSlidingKeyInput = false;
         sendSlideKeys();
@@ -448,7 +448,7 @@ public class PointerTracker {
         if (DEBUG)
             debugLog("onCancelEvt:", x, y);
         mHandler.cancelKeyTimers();
-        mHandler.cancelPopupPreview();
+        mHandler.cancelPopupPreview(this);
         showKeyPreviewAndUpdateKey(NOT_A_KEY);
         mIsInSlidingKeyInput = false;
         int keyIndex = mKeyState.getKeyIndex();
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide LRU cache of long-press popup keyboards, keyed by what the popup is built
+ * from rather than by the key that opened it. The same popup content shared by several
+ * layouts (e.g. vowel accents in qwerty, full and compact) is only built once.
+ *
+ * <p>The cache is bounded by an estimate of the retained size of each keyboard. Popups
+ * are inflated with the input view's themed context, so the cache must be cleared when
+ * the keyboard theme changes.
+ */
+class PopupKeyboardCache {
+    private static final String TAG = "PCKeyboardPopupCache";
+
+    /* package */ static final int MAX_BYTES = 256 * 1024;
+    // Rough retained size of a Keyboard and of each of its keys, including label strings.
+    private static final int KEYBOARD_BYTES = 512;
+    private static final int KEY_BYTES = 256;
+
+    private static PopupKeyboardCache sInstance = new PopupKeyboardCache();
+
+    /* package */ static final class CacheKey {
+        final String content;
+        final int templateResId;
+        final boolean reversed;
+        final int defaultHeight;
+        final int padding;
+        final int displayWidth;
+        // Night mode, theme attributes such as kbdColorText resolve differently
+        final int uiMode;
+
+        CacheKey(String content, int templateResId, boolean reversed, int defaultHeight,
+                int padding, int displayWidth, int uiMode) {
+            this.content = content;
+            this.templateResId = templateResId;
+            this.reversed = reversed;
+            this.defaultHeight = defaultHeight;
+            this.padding = padding;
+            this.displayWidth = displayWidth;
+            this.uiMode = uiMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return templateResId == other.templateResId
+                    && reversed == other.reversed
+                    && defaultHeight == other.defaultHeight
+                    && padding == other.padding
+                    && displayWidth == other.displayWidth
+                    && uiMode == other.uiMode
+                    && (content == null ? other.content == null : content.equals(other.content));
+        }
+
+        @Override
+        public int hashCode() {
+            int h = content == null ? 0 : content.hashCode();
+            h = 31 * h + templateResId;
+            h = 31 * h + (reversed ? 1 : 0);
+            h = 31 * h + defaultHeight;
+            h = 31 * h + padding;
+            h = 31 * h + displayWidth;
+            h = 31 * h + uiMode;
+            return h;
+        }
+    }
+
+    // Access-ordered, least recently used first
+    private final LinkedHashMap<CacheKey, Keyboard> mCache =
+            new LinkedHashMap<CacheKey, Keyboard>(32, 0.75f, true);
+    private int mBytes;
+    private int mHits;
+    private int mMisses;
+
+    private PopupKeyboardCache() {
+    }
+
+    public static PopupKeyboardCache getInstance() {
+        return sInstance;
+    }
+
+    public synchronized Keyboard get(CacheKey key) {
+        Keyboard kbd = mCache.get(key);
+        if (kbd != null) {
+            ++mHits;
+        } else {
+            ++mMisses;
+        }
+        return kbd;
+    }
+
+    public synchronized void put(CacheKey key, Keyboard kbd) {
+        Keyboard old = mCache.put(key, kbd);
+        if (old != null) mBytes -= estimateBytes(old);
+        mBytes += estimateBytes(kbd);
+        trimToSize(MAX_BYTES);
+    }
+
+    public synchronized void clear() {
+        mCache.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Drops least recently used entries until the estimated size is at most maxBytes.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        Iterator<Map.Entry<CacheKey, Keyboard>> it = mCache.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            mBytes -= estimateBytes(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "(entries=" + mCache.size() + " bytes=" + mBytes
+                + " hits=" + mHits + " misses=" + mMisses + ")";
+    }
+
+    private static int estimateBytes(Keyboard kbd) {
+        return KEYBOARD_BYTES + kbd.getKeys().size() * KEY_BYTES;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.os.SystemClock;
+import android.util.SparseLongArray;
+import android.view.KeyEvent;
+
+/**
+ * Creates the key events for synthesized key presses. An up event gets the down time of
+ * the last down event for its key, so that editors see a proper press. Must be used on
+ * the UI thread.
+ */
+class SyntheticKeyEvents {
+    // Key code -> down time of keys that are down
+    private static final SparseLongArray sDownTimes = new SparseLongArray();
+
+    private SyntheticKeyEvents() {
+    }
+
+    /**
+     * Returns a new key event for the current time.
+     */
+    public static KeyEvent obtain(int action, int keyCode, int meta) {
+        final long now = SystemClock.uptimeMillis();
+        long downTime = now;
+        if (action == KeyEvent.ACTION_DOWN) {
+            sDownTimes.put(keyCode, now);
+        } else {
+            final int index = sDownTimes.indexOfKey(keyCode);
+            if (index >= 0) {
+                downTime = sDownTimes.valueAt(index);
+                sDownTimes.removeAt(index);
+            }
+        }
+        return new KeyEvent(downTime, now, action, keyCode, 0, meta);
+    }
+}
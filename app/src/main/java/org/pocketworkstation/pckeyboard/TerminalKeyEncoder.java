@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.view.KeyEvent;
+
+/**
+ * Encodes cursor, editing and function keys as xterm escape sequences for terminal
+ * emulators that take text input only.
+ *
+ * <p>Unmodified keys use the VT220 sequences (ESC [ 5 ~, ESC O P). Modified keys use the
+ * xterm form with a modifier parameter, e.g. ESC [ 1 ; 5 A for Ctrl-Up or ESC [ 15 ; 2 ~
+ * for Shift-F5. See "PC-Style Function Keys" in the xterm ctlseqs documentation.
+ */
+class TerminalKeyEncoder {
+    /* package */ static final int MOD_SHIFT = 1;
+    /* package */ static final int MOD_ALT = 2;
+    /* package */ static final int MOD_CTRL = 4;
+    /* package */ static final int MOD_META = 8;
+    private static final int MOD_COMBINATIONS = 16;
+
+    private static final char ESC = 27;
+
+    // Table entries: the final character in the low byte, the number parameter above it.
+    // Keys with a final letter are sent as ESC O <letter> when unmodified, keys with a
+    // number as ESC [ <number> ~.
+    private static final int FLAG_NATIVE = 0x10000;  // Unmodified key is left to the editor
+    private static final int TABLE_SIZE = KeyEvent.KEYCODE_F12 + 1;
+    private static final int[] sKeys = new int[TABLE_SIZE];
+    // ConnectBot's own F1-F10 encoding: Ctrl-1 to Ctrl-0, see mConnectbotTabHack.
+    private static final int[] sCtrlDigits = new int[TABLE_SIZE];
+    // Sequences built so far, indexed by key code and modifiers.
+    private static final String[] sCache = new String[TABLE_SIZE * MOD_COMBINATIONS];
+
+    static {
+        // ConnectBot handles the plain arrow keys itself
+        sKeys[KeyEvent.KEYCODE_DPAD_UP] = 'A' | FLAG_NATIVE;
+        sKeys[KeyEvent.KEYCODE_DPAD_DOWN] = 'B' | FLAG_NATIVE;
+        sKeys[KeyEvent.KEYCODE_DPAD_RIGHT] = 'C' | FLAG_NATIVE;
+        sKeys[KeyEvent.KEYCODE_DPAD_LEFT] = 'D' | FLAG_NATIVE;
+
+        sKeys[KeyEvent.KEYCODE_MOVE_HOME] = tilde(1);
+        sKeys[KeyEvent.KEYCODE_INSERT] = tilde(2);
+        sKeys[KeyEvent.KEYCODE_FORWARD_DEL] = tilde(3);
+        sKeys[KeyEvent.KEYCODE_MOVE_END] = tilde(4);
+        sKeys[KeyEvent.KEYCODE_PAGE_UP] = tilde(5);
+        sKeys[KeyEvent.KEYCODE_PAGE_DOWN] = tilde(6);
+
+        sKeys[KeyEvent.KEYCODE_F1] = 'P';
+        sKeys[KeyEvent.KEYCODE_F2] = 'Q';
+        sKeys[KeyEvent.KEYCODE_F3] = 'R';
+        sKeys[KeyEvent.KEYCODE_F4] = 'S';
+        sKeys[KeyEvent.KEYCODE_F5] = tilde(15);
+        sKeys[KeyEvent.KEYCODE_F6] = tilde(17);
+        sKeys[KeyEvent.KEYCODE_F7] = tilde(18);
+        sKeys[KeyEvent.KEYCODE_F8] = tilde(19);
+        sKeys[KeyEvent.KEYCODE_F9] = tilde(20);
+        sKeys[KeyEvent.KEYCODE_F10] = tilde(21);
+        sKeys[KeyEvent.KEYCODE_F11] = tilde(23);
+        sKeys[KeyEvent.KEYCODE_F12] = tilde(24);
+
+        for (int i = 0; i < 10; ++i) {
+            sCtrlDigits[KeyEvent.KEYCODE_F1 + i] =
+                    i == 9 ? KeyEvent.KEYCODE_0 : KeyEvent.KEYCODE_1 + i;
+        }
+    }
+
+    private TerminalKeyEncoder() {
+    }
+
+    private static int tilde(int number) {
+        return (number << 8) | '~';
+    }
+
+    /**
+     * Returns the complete escape sequence for a key, or null if the key should be sent
+     * as a key event.
+     * @param keyCode the Android key code
+     * @param modifiers a combination of the MOD_* flags
+     */
+    public static String encode(int keyCode, int modifiers) {
+        if (keyCode < 0 || keyCode >= TABLE_SIZE) return null;
+        final int entry = sKeys[keyCode];
+        if (entry == 0) return null;
+        modifiers &= MOD_COMBINATIONS - 1;
+        if (modifiers == 0 && (entry & FLAG_NATIVE) != 0) return null;
+        final int index = keyCode * MOD_COMBINATIONS + modifiers;
+        String seq = sCache[index];
+        if (seq == null) {
+            seq = build(entry, modifiers);
+            sCache[index] = seq;
+        }
+        return seq;
+    }
+
+    private static String build(int entry, int modifiers) {
+        final char last = (char) (entry & 0xff);
+        final int number = (entry >> 8) & 0xff;
+        StringBuilder seq = new StringBuilder(8);
+        seq.append(ESC);
+        if (modifiers == 0) {
+            if (number == 0) {
+                seq.append('O');
+            } else {
+                seq.append('[').append(number);
+            }
+        } else {
+            seq.append('[').append(number == 0 ? 1 : number)
+                    .append(';').append(modifiers + 1);
+        }
+        seq.append(last);
+        return seq.toString();
+    }
+
+    /**
+     * Returns the digit key ConnectBot maps to a function key when sent with Ctrl, or 0.
+     */
+    public static int getConnectbotCtrlDigit(int keyCode) {
+        if (keyCode < 0 || keyCode >= TABLE_SIZE) return 0;
+        return sCtrlDigits[keyCode];
+    }
+}
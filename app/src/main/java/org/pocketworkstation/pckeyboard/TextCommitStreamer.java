@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 Darren Salt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.pocketworkstation.pckeyboard;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.SpannableStringBuilder;
+import android.view.inputmethod.InputConnection;
+import android.widget.Toast;
+
+/**
+ * Commits long text in chunks. A single huge commit can exceed the binder transaction
+ * limit and keeps slow editors (terminals, web views) busy for a long time.
+ *
+ * <p>Only one chunk is outstanding at a time: the next one is sent when the editor
+ * acknowledges the previous one with a selection update, or after a short timeout for
+ * editors that don't report selections. Waiting at least that long also keeps the
+ * {@link CommitPipeline} from merging chunks back together. Text arriving meanwhile is
+ * queued behind the rest. Progress is shown in a toast, Escape or typing cancels the
+ * remaining text. Must be used on the UI thread.
+ */
+class TextCommitStreamer {
+    /** Text at least this long is streamed instead of committed at once. */
+    /* package */ static final int STREAM_THRESHOLD = 2048;
+    private static final int CHUNK_CHARS = 1024;
+    // Time to wait for a selection update before sending the next chunk anyway.
+    private static final int ACK_TIMEOUT_MS = 100;
+    // Progress toast updates, in percent.
+    private static final int PROGRESS_STEP = 10;
+
+    private final LatinIME mIme;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Toast mToast;
+
+    private CharSequence mText;
+    private int mSent;
+    private boolean mAwaitingAck;
+    private int mLastProgress;
+
+    private final Runnable mSendNext = new Runnable() {
+        public void run() {
+            mAwaitingAck = false;
+            sendChunk();
+        }
+    };
+
+    TextCommitStreamer(LatinIME ime) {
+        mIme = ime;
+    }
+
+    public boolean isStreaming() {
+        return mText != null;
+    }
+
+    /**
+     * Starts sending the text, or appends it to the text still being sent.
+     */
+    public void start(CharSequence text) {
+        if (mText != null) {
+            // The next chunk is already scheduled, it continues with the combined text.
+            mText = new SpannableStringBuilder(mText, mSent, mText.length()).append(text);
+            mSent = 0;
+            return;
+        }
+        mHandler.removeCallbacks(mSendNext);
+        mText = text;
+        mSent = 0;
+        mAwaitingAck = false;
+        mLastProgress = -1;
+        sendChunk();
+    }
+
+    /**
+     * Called for each selection update from the editor, the acknowledgment for the chunk
+     * sent last.
+     */
+    public void onUpdateSelection() {
+        if (!mAwaitingAck) return;
+        mHandler.removeCallbacks(mSendNext);
+        mHandler.post(mSendNext);
+        mAwaitingAck = false;
+    }
+
+    /**
+     * Drops the text not sent yet.
+     * @return true if anything was being sent
+     */
+    public boolean cancel() {
+        if (mText == null) return false;
+        mHandler.removeCallbacks(mSendNext);
+        final boolean remaining = mSent < mText.length();
+        mText = null;
+        mAwaitingAck = false;
+        if (remaining) showToast(mIme.getString(R.string.toast_text_stream_cancelled));
+        return true;
+    }
+
+    private void sendChunk() {
+        if (mText == null) return;
+        final InputConnection ic = mIme.getCurrentInputConnection();
+        final int length = mText.length();
+        if (ic == null || mSent >= length) {
+            finish();
+            return;
+        }
+        int end = Math.min(length, mSent + CHUNK_CHARS);
+        // Don't split a surrogate pair
+        if (end < length && Character.isHighSurrogate(mText.charAt(end - 1))
+                && Character.isLowSurrogate(mText.charAt(end))) {
+            ++end;
+        }
+        ic.commitText(mText.subSequence(mSent, end), 1);
+        mSent = end;
+        if (mSent >= length) {
+            finish();
+            return;
+        }
+        final int progress = (int) (100L * mSent / length) / PROGRESS_STEP * PROGRESS_STEP;
+        if (progress != mLastProgress) {
+            mLastProgress = progress;
+            showToast(mIme.getString(R.string.toast_text_stream_progress, progress));
+        }
+        mAwaitingAck = true;
+        mHandler.postDelayed(mSendNext, ACK_TIMEOUT_MS);
+    }
+
+    private void finish() {
+        mText = null;
+        mAwaitingAck = false;
+        if (mToast != null) mToast.cancel();
+    }
+
+    private void showToast(String message) {
+        // Reuse one toast, so that progress updates replace each other.
+        if (mToast == null) {
+            mToast = Toast.makeText(mIme.getApplicationContext(), message, Toast.LENGTH_SHORT);
+        } else {
+            mToast.setText(message);
+        }
+        mToast.show();
+    }
+}
@@ -11,6 +11,9 @@ import android.graphics.drawable.Drawable;
 import android.view.Gravity;
 import android.view.View;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.pocketworkstation.pckeyboard.Keyboard.Key;
 import org.pocketworkstation.pckeyboard.LatinKeyboardBaseView;
 
@@ -41,6 +44,86 @@ import org.pocketworkstation.pckeyboard.LatinKeyboardBaseView;
  */
 public class SeamlessPopupDrawable extends Drawable {
 
+    // Key sizes repeat across a layout, so only a handful of distinct shapes are in use.
+    private static final int PATH_CACHE_SIZE = 8;
+
+    /**
+     * Translation-invariant description of a path. Coordinates are relative to the
+     * top-left corner of the popup rect.
+     */
+    private static final class PathKey {
+        float keyLeft, keyTop, keyRight, keyBottom;
+        float popupLeft, popupTop, popupRight, popupBottom;
+        float keyTopY;
+        float strokeWidth;
+        float cornerRadius;
+        float keyCornerRadius;
+
+        void set(PathKey other) {
+            keyLeft = other.keyLeft;
+            keyTop = other.keyTop;
+            keyRight = other.keyRight;
+            keyBottom = other.keyBottom;
+            popupLeft = other.popupLeft;
+            popupTop = other.popupTop;
+            popupRight = other.popupRight;
+            popupBottom = other.popupBottom;
+            keyTopY = other.keyTopY;
+            strokeWidth = other.strokeWidth;
+            cornerRadius = other.cornerRadius;
+            keyCornerRadius = other.keyCornerRadius;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PathKey)) return false;
+            PathKey other = (PathKey) o;
+            return keyLeft == other.keyLeft && keyTop == other.keyTop
+                    && keyRight == other.keyRight && keyBottom == other.keyBottom
+                    && popupLeft == other.popupLeft && popupTop == other.popupTop
+                    && popupRight == other.popupRight && popupBottom == other.popupBottom
+                    && keyTopY == other.keyTopY && strokeWidth == other.strokeWidth
+                    && cornerRadius == other.cornerRadius
+                    && keyCornerRadius == other.keyCornerRadius;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = Float.floatToIntBits(keyLeft);
+            h = 31 * h + Float.floatToIntBits(keyTop);
+            h = 31 * h + Float.floatToIntBits(keyRight);
+            h = 31 * h + Float.floatToIntBits(keyBottom);
+            h = 31 * h + Float.floatToIntBits(popupLeft);
+            h = 31 * h + Float.floatToIntBits(popupTop);
+            h = 31 * h + Float.floatToIntBits(popupRight);
+            h = 31 * h + Float.floatToIntBits(popupBottom);
+            h = 31 * h + Float.floatToIntBits(keyTopY);
+            h = 31 * h + Float.floatToIntBits(strokeWidth);
+            h = 31 * h + Float.floatToIntBits(cornerRadius);
+            h = 31 * h + Float.floatToIntBits(keyCornerRadius);
+            return h;
+        }
+    }
+
+    // LRU of prebuilt paths, most recently used last. Evicted paths are recycled.
+    private final LinkedHashMap<PathKey, Path> mPathCache =
+            new LinkedHashMap<PathKey, Path>(PATH_CACHE_SIZE * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PathKey, Path> eldest) {
+            if (size() > PATH_CACHE_SIZE) {
+                mRecycledPath = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+    private final PathKey mLookupKey = new PathKey();
+    private final RectF mArcRect = new RectF();
+    private Path mRecycledPath;
+    // Canvas translation applied to the cached path at draw time
+    private float mPathOffsetX;
+    private float mPathOffsetY;
+
     private Paint mBackgroundPaint;
     private Paint mStrokePaint;
     private Path mPath;
@@ -144,7 +227,47 @@ public class SeamlessPopupDrawable extends Drawable {
         }
 
         /**
-        * Internal method that reconstructs the path connecting the key and popup shapes.
+        * Looks up the path for the current geometry in the path cache, building it on a miss.
+        * Cached paths are stored relative to the popup's top-left corner.
+        */
+        private void updatePath() {
+        // The shape only depends on the geometry relative to the popup, so paths are
+        // built at the origin, cached, and translated when drawn.
+        mPathOffsetX = mPopupRect.left;
+        mPathOffsetY = mPopupRect.top;
+        final PathKey lookup = mLookupKey;
+        lookup.keyLeft = mKeyRect.left - mPathOffsetX;
+        lookup.keyTop = mKeyRect.top - mPathOffsetY;
+        lookup.keyRight = mKeyRect.right - mPathOffsetX;
+        lookup.keyBottom = mKeyRect.bottom - mPathOffsetY;
+        lookup.popupLeft = 0;
+        lookup.popupTop = 0;
+        lookup.popupRight = mPopupRect.width();
+        lookup.popupBottom = mPopupRect.height();
+        lookup.keyTopY = mKeyTopY - mPathOffsetY;
+        lookup.strokeWidth = mStrokeWidth;
+        lookup.cornerRadius = mCornerRadius;
+        lookup.keyCornerRadius = mKeyCornerRadius;
+
+        Path path = mPathCache.get(lookup);
+        if (path == null) {
+            path = mRecycledPath != null ? mRecycledPath : new Path();
+            mRecycledPath = null;
+            buildPath(path, lookup);
+            PathKey cacheKey = new PathKey();
+            cacheKey.set(lookup);
+            mPathCache.put(cacheKey, path);
+        }
+        mPath = path;
+        }
+
+        private RectF arcRect(float left, float top, float right, float bottom) {
+        mArcRect.set(left, top, right, bottom);
+        return mArcRect;
+        }
+
+        /**
+        * Internal method that builds the path connecting the key and popup shapes.
         * 
         * This method implements the core path rendering algorithm:
         * - Applies snap logic to align edges when they're within corner radius distance
@@ -160,39 +283,36 @@ public class SeamlessPopupDrawable extends Drawable {
         * - Straight transitions when edges are aligned or hanging out
         * - Snap tolerance to ensure crisp vertical lines when virtually aligned
         */
-        private void updatePath() {
-        mPath.reset();
+        private void buildPath(Path path, PathKey geom) {
+        path.reset();
 
         // Inset by half the stroke width to avoid clipping, as STROKE draws centered on the path.
-        float halfStroke = mStrokeWidth / 2f;
-
-        // Small snap tolerance to ensure crisp vertical lines when virtually aligned
-        float snapDistance = mStrokeWidth;
+        float halfStroke = geom.strokeWidth / 2f;
 
-        float keyLeft = mKeyRect.left + halfStroke;
-        float keyRight = mKeyRect.right - halfStroke;
-        float keyBottom = mKeyRect.bottom - halfStroke;
-        float keyTop = mKeyTopY;
+        float keyLeft = geom.keyLeft + halfStroke;
+        float keyRight = geom.keyRight - halfStroke;
+        float keyBottom = geom.keyBottom - halfStroke;
+        float keyTop = geom.keyTopY;
 
-        float popupLeft = mPopupRect.left + halfStroke;
-        float popupRight = mPopupRect.right - halfStroke;
-        float popupTop = mPopupRect.top + halfStroke;
+        float popupLeft = geom.popupLeft + halfStroke;
+        float popupRight = geom.popupRight - halfStroke;
+        float popupTop = geom.popupTop + halfStroke;
         // float popupBottom = mPopupRect.bottom; // Same as keyTop
 
         // Apply Snap Logic
-        if (Math.abs(keyLeft - popupLeft) <= mCornerRadius) {
+        if (Math.abs(keyLeft - popupLeft) <= geom.cornerRadius) {
             popupLeft = keyLeft;
         }
-        if (Math.abs(keyRight - popupRight) <= mCornerRadius) {
+        if (Math.abs(keyRight - popupRight) <= geom.cornerRadius) {
             popupRight = keyRight;
         }
 
-        float filletRadius = mKeyCornerRadius;
+        float filletRadius = geom.keyCornerRadius;
 
         // --- Start Drawing ---
 
         // 1. Start at Key Left Edge (Just above bottom corner)
-        mPath.moveTo(keyLeft, keyBottom - mKeyCornerRadius);
+        path.moveTo(keyLeft, keyBottom - geom.keyCornerRadius);
 
         // 2. Left Side Connection
         float leftDelta = keyLeft - popupLeft;
@@ -202,42 +322,42 @@ public class SeamlessPopupDrawable extends Drawable {
             // We need to go Left to reach Popup
 
             float availableSpace = leftDelta;
-            float requiredSpace = mCornerRadius + filletRadius;
+            float requiredSpace = geom.cornerRadius + filletRadius;
 
             if (availableSpace >= requiredSpace) {
                 // Standard S-Curve
-                mPath.lineTo(keyLeft, keyTop + filletRadius);
+                path.lineTo(keyLeft, keyTop + filletRadius);
                 // Turn Left (CCW) onto shelf
-                mPath.arcTo(new RectF(keyLeft - 2 * filletRadius, keyTop, keyLeft, keyTop + 2 * filletRadius), 0f, -90f);
-                mPath.lineTo(popupLeft + mCornerRadius, keyTop);
+                path.arcTo(arcRect(keyLeft - 2 * filletRadius, keyTop, keyLeft, keyTop + 2 * filletRadius), 0f, -90f);
+                path.lineTo(popupLeft + geom.cornerRadius, keyTop);
                 // Turn Right (CW) onto popup
-                mPath.arcTo(new RectF(popupLeft, keyTop - 2 * mCornerRadius, popupLeft + 2 * mCornerRadius, keyTop), 90f, 90f);
+                path.arcTo(arcRect(popupLeft, keyTop - 2 * geom.cornerRadius, popupLeft + 2 * geom.cornerRadius, keyTop), 90f, 90f);
             } else {
                 // Tight Space - Dynamic Radius Scaling
                 // Split the available delta between the two curves
                 float dynamicRadius = availableSpace / 2f;
 
-                mPath.lineTo(keyLeft, keyTop + dynamicRadius);
+                path.lineTo(keyLeft, keyTop + dynamicRadius);
                 // Turn Left (CCW)
-                mPath.arcTo(new RectF(keyLeft - 2 * dynamicRadius, keyTop, keyLeft, keyTop + 2 * dynamicRadius), 0f, -90f);
+                path.arcTo(arcRect(keyLeft - 2 * dynamicRadius, keyTop, keyLeft, keyTop + 2 * dynamicRadius), 0f, -90f);
                 // No lineTo needed, we are at the midpoint
                 // Turn Right (CW)
-                mPath.arcTo(new RectF(popupLeft, keyTop - 2 * dynamicRadius, popupLeft + 2 * dynamicRadius, keyTop), 90f, 90f);
+                path.arcTo(arcRect(popupLeft, keyTop - 2 * dynamicRadius, popupLeft + 2 * dynamicRadius, keyTop), 90f, 90f);
             }
         } else {
             // Key is aligned or hanging out (Key Left of Popup Left)
             // Just go straight up
-            mPath.lineTo(keyLeft, keyTop);
-            if (keyLeft != popupLeft) mPath.lineTo(popupLeft, keyTop);
-            mPath.lineTo(popupLeft, popupTop + mCornerRadius);
+            path.lineTo(keyLeft, keyTop);
+            if (keyLeft != popupLeft) path.lineTo(popupLeft, keyTop);
+            path.lineTo(popupLeft, popupTop + geom.cornerRadius);
         }
 
         // 3. Popup Top-Left Corner
-        mPath.arcTo(new RectF(popupLeft, popupTop, popupLeft + 2 * mCornerRadius, popupTop + 2 * mCornerRadius), 180f, 90f);
+        path.arcTo(arcRect(popupLeft, popupTop, popupLeft + 2 * geom.cornerRadius, popupTop + 2 * geom.cornerRadius), 180f, 90f);
 
         // 4. Popup Top Edge & Top-Right Corner
-        mPath.lineTo(popupRight - mCornerRadius, popupTop);
-        mPath.arcTo(new RectF(popupRight - 2 * mCornerRadius, popupTop, popupRight, popupTop + 2 * mCornerRadius), 270f, 90f);
+        path.lineTo(popupRight - geom.cornerRadius, popupTop);
+        path.arcTo(arcRect(popupRight - 2 * geom.cornerRadius, popupTop, popupRight, popupTop + 2 * geom.cornerRadius), 270f, 90f);
 
         // 5. Right Side Connection
         float rightDelta = popupRight - keyRight;
@@ -247,44 +367,44 @@ public class SeamlessPopupDrawable extends Drawable {
             // We need to go Left to reach Key
 
             float availableSpace = rightDelta;
-            float requiredSpace = mCornerRadius + filletRadius;
+            float requiredSpace = geom.cornerRadius + filletRadius;
 
             if (availableSpace >= requiredSpace) {
                  // Standard S-Curve
-                 mPath.lineTo(popupRight, keyTop - mCornerRadius);
+                 path.lineTo(popupRight, keyTop - geom.cornerRadius);
                  // Turn Right (CW) onto shelf
-                 mPath.arcTo(new RectF(popupRight - 2 * mCornerRadius, keyTop - 2 * mCornerRadius, popupRight, keyTop), 0f, 90f);
-                 mPath.lineTo(keyRight + filletRadius, keyTop);
+                 path.arcTo(arcRect(popupRight - 2 * geom.cornerRadius, keyTop - 2 * geom.cornerRadius, popupRight, keyTop), 0f, 90f);
+                 path.lineTo(keyRight + filletRadius, keyTop);
                  // Turn Left (CCW) onto key
-                 mPath.arcTo(new RectF(keyRight, keyTop, keyRight + 2 * filletRadius, keyTop + 2 * filletRadius), 270f, -90f);
+                 path.arcTo(arcRect(keyRight, keyTop, keyRight + 2 * filletRadius, keyTop + 2 * filletRadius), 270f, -90f);
             } else {
                  // Tight Space - Dynamic Radius Scaling
                  float dynamicRadius = availableSpace / 2f;
 
-                 mPath.lineTo(popupRight, keyTop - dynamicRadius);
+                 path.lineTo(popupRight, keyTop - dynamicRadius);
                  // Turn Right (CW)
-                 mPath.arcTo(new RectF(popupRight - 2 * dynamicRadius, keyTop - 2 * dynamicRadius, popupRight, keyTop), 0f, 90f);
+                 path.arcTo(arcRect(popupRight - 2 * dynamicRadius, keyTop - 2 * dynamicRadius, popupRight, keyTop), 0f, 90f);
                  // Turn Left (CCW)
-                 mPath.arcTo(new RectF(keyRight, keyTop, keyRight + 2 * dynamicRadius, keyTop + 2 * dynamicRadius), 270f, -90f);
+                 path.arcTo(arcRect(keyRight, keyTop, keyRight + 2 * dynamicRadius, keyTop + 2 * dynamicRadius), 270f, -90f);
             }
-            mPath.lineTo(keyRight, keyBottom - mKeyCornerRadius);
+            path.lineTo(keyRight, keyBottom - geom.keyCornerRadius);
         } else {
              // Aligned or hanging out
-             mPath.lineTo(popupRight, mKeyTopY);
-             if (keyRight != popupRight) mPath.lineTo(keyRight, mKeyTopY);
-             mPath.lineTo(keyRight, keyBottom - mKeyCornerRadius);
+             path.lineTo(popupRight, keyTop);
+             if (keyRight != popupRight) path.lineTo(keyRight, keyTop);
+             path.lineTo(keyRight, keyBottom - geom.keyCornerRadius);
         }
 
         // 6. Key Bottom-Right Corner
-        mPath.arcTo(new RectF(keyRight - 2 * mKeyCornerRadius, keyBottom - 2 * mKeyCornerRadius, keyRight, keyBottom), 0f, 90f);
+        path.arcTo(arcRect(keyRight - 2 * geom.keyCornerRadius, keyBottom - 2 * geom.keyCornerRadius, keyRight, keyBottom), 0f, 90f);
 
         // 7. Key Bottom Edge
-        mPath.lineTo(keyLeft + mKeyCornerRadius, keyBottom);
+        path.lineTo(keyLeft + geom.keyCornerRadius, keyBottom);
 
         // 8. Key Bottom-Left Corner
-        mPath.arcTo(new RectF(keyLeft, keyBottom - 2 * mKeyCornerRadius, keyLeft + 2 * mKeyCornerRadius, keyBottom), 90f, 90f);
+        path.arcTo(arcRect(keyLeft, keyBottom - 2 * geom.keyCornerRadius, keyLeft + 2 * geom.keyCornerRadius, keyBottom), 90f, 90f);
 
-        mPath.close();
+        path.close();
         }
 
         /**
@@ -298,6 +418,8 @@ public class SeamlessPopupDrawable extends Drawable {
         */
         @Override
         public void draw(Canvas canvas) {
+        canvas.save();
+        canvas.translate(mPathOffsetX, mPathOffsetY);
         // Draw the background
         canvas.drawPath(mPath, mBackgroundPaint);
 
@@ -305,6 +427,7 @@ public class SeamlessPopupDrawable extends Drawable {
         if (mStrokeWidth > 0) {
             canvas.drawPath(mPath, mStrokePaint);
         }
+        canvas.restore();
     }
 
     @Override
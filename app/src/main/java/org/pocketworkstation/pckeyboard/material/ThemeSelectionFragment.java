@@ -25,6 +25,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
@@ -98,6 +99,24 @@ public class ThemeSelectionFragment extends Fragment {
 
         adapter = new ThemeAdapter(themes, currentTheme, this::onThemeSelected);
         recyclerView.setAdapter(adapter);
+
+        // Start inflating the keyboard for a theme as soon as its card is touched, so that
+        // the keyboard doesn't stall when the theme is applied.
+        recyclerView.addOnItemTouchListener(new RecyclerView.SimpleOnItemTouchListener() {
+            @Override
+            public boolean onInterceptTouchEvent(@NonNull RecyclerView rv, @NonNull MotionEvent e) {
+                if (e.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                    View child = rv.findChildViewUnder(e.getX(), e.getY());
+                    int position = child == null
+                            ? RecyclerView.NO_POSITION : rv.getChildAdapterPosition(child);
+                    if (position != RecyclerView.NO_POSITION) {
+                        KeyboardSwitcher.getInstance().prepareInputView(
+                                Integer.parseInt(themes.get(position).id));
+                    }
+                }
+                return false;
+            }
+        });
     }
 
     private void onThemeSelected(String themeId) {
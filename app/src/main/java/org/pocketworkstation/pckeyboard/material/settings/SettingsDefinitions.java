@@ -34,6 +34,7 @@ public final class SettingsDefinitions {
     public static final String KEY_AUTO_CAP = "auto_cap";
     public static final String KEY_CONNECTBOT_TAB = "connectbot_tab_hack";
     public static final String KEY_LONG_PRESS_DURATION = "pref_long_press_duration";
+    public static final String KEY_DELETE_ACCELERATE_DELAY = "pref_delete_accelerate_delay";
     public static final String KEY_POPUP_CONTENT = "pref_popup_content";
 
     // Visual Appearance
@@ -100,6 +101,9 @@ public final class SettingsDefinitions {
                 .addSlider(KEY_LONG_PRESS_DURATION, "Long press duration",
                         "Time to hold key for alternate characters",
                         100f, 1000f, 50f, 400f, true, "%.0f ms")
+                .addSlider(KEY_DELETE_ACCELERATE_DELAY, "Fast delete delay",
+                        "Time to hold backspace before it deletes words and lines",
+                        0f, 3000f, 100f, 1000f, true, "%.0f ms")
                 .build());
 
         return sections;